@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable buffers shared by pipeline stages.
+ * Buffers are allocated on demand; at most maxRetained idle buffers are kept.
+ *
+ * Direct buffers only pay off when a FileChannel writes them. Channels wrapping
+ * process streams (Channels.newChannel) copy through a heap array of their own
+ * either way, so pools feeding those should hand out heap buffers.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxRetained;
+    private final boolean direct;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxRetained, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+        this.direct = direct;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        retained.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (retained.incrementAndGet() <= maxRetained) {
+            free.offer(buffer);
+        } else {
+            retained.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Per-call time and allocation of the echo, pwd and cd built-ins in steady state.
+ * Exits with status 1 if echo or pwd allocate, so it can guard the fast path in CI.
+ *
+ * Usage: java -cp target/classes BuiltInBenchmark [iterations]
+ */
+public class BuiltInBenchmark {
+    private static final int WARMUP = 200_000;
+
+    private interface Call {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path currentDirectory = Paths.get(System.getProperty("user.dir")).toAbsolutePath();
+        Path parent = currentDirectory.getParent() != null ? currentDirectory.getParent() : currentDirectory;
+
+        CommandExecutor executor = new CommandExecutor();
+        executor.setSessionStreams(OutputStream.nullOutputStream(), new PrintStream(OutputStream.nullOutputStream()));
+
+        ParsedCommand echo = CommandParser.parse("echo hello world \"with quotes\"");
+        ParsedCommand pwd = CommandParser.parse("pwd");
+        ParsedCommand cdUp = CommandParser.parse("cd " + parent);
+        ParsedCommand cdBack = CommandParser.parse("cd " + currentDirectory);
+
+        long echoBytes = report("echo", iterations, () -> executor.execute(echo, currentDirectory, null));
+        long pwdBytes = report("pwd", iterations, () -> executor.execute(pwd, currentDirectory, null));
+        report("cd", iterations, () -> {
+            executor.executeBuiltIn(cdUp, currentDirectory);
+            executor.takeDirectoryChange();
+            executor.executeBuiltIn(cdBack, parent);
+            executor.takeDirectoryChange();
+        });
+
+        if (echoBytes > 0 || pwdBytes > 0) {
+            System.out.println("FAIL: echo/pwd should not allocate in steady state");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns bytes allocated per call
+     */
+    private static long report(String name, int iterations, Call call) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            call.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        long perCall = allocated / iterations;
+        System.out.printf("%-6s %8.1f ns/call %8d bytes/call%n", name, nanos / (double) iterations, perCall);
+        return perCall;
+    }
+}
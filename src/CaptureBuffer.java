@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable heap buffer that collects command substitution output.
+ * Capacity doubles on demand up to a fixed cap; writes beyond the cap fail.
+ * Most substitutions capture a few bytes, so the buffer starts small and is
+ * left to the garbage collector rather than tying up direct memory.
+ */
+public class CaptureBuffer extends OutputStream {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int maxBytes;
+    private byte[] buffer;
+    private int size;
+
+    /**
+     * Output went past the cap
+     */
+    public static class OverflowException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OverflowException(int maxBytes) {
+            super("command substitution output exceeds " + maxBytes + " bytes");
+        }
+    }
+
+    public CaptureBuffer(int maxBytes) {
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Decode the captured bytes, dropping trailing newlines like POSIX shells do
+     */
+    public String toString(Charset charset) {
+        int end = size;
+        while (end > 0 && buffer[end - 1] == '\n') {
+            end--;
+        }
+        return new String(buffer, 0, end, charset);
+    }
+
+    private void ensureCapacity(int extra) throws IOException {
+        int required = size + extra;
+        if (required <= buffer.length) {
+            return;
+        }
+        if (required > maxBytes) {
+            throw new OverflowException(maxBytes);
+        }
+
+        int newCapacity = Math.max(buffer.length, 1);
+        while (newCapacity < required) {
+            newCapacity = (int) Math.min((long) newCapacity * 2, maxBytes);
+        }
+        buffer = Arrays.copyOf(buffer, newCapacity);
+    }
+}
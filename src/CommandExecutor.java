@@ -1,10 +1,17 @@
 import org.jline.terminal.Terminal;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -12,39 +19,272 @@ import java.util.stream.Collectors;
  * Executes commands (both built-in and external)
  */
 public class CommandExecutor {
+    private static final int DEFAULT_SUBSTITUTION_MAX_BYTES = 16 * 1024 * 1024;
+    
+    private final int substitutionMaxBytes;
+    private final ResourceLimits sessionLimits = new ResourceLimits();
+    
+    // Pipe buffering between pipeline stages; process pipes are copied through heap
+    // arrays anyway, while fan-outs mostly write files, where direct buffers save a copy
+    private final BufferPool bufferPool = new BufferPool(
+            Integer.getInteger("javashell.pipe.bufferSize", 64 * 1024), 64, false);
+    private final BufferPool fanOutPool = new BufferPool(
+            Integer.getInteger("javashell.pipe.bufferSize", 64 * 1024), 64, true);
+    private final long pipeHighWatermark = Long.getLong("javashell.pipe.highWatermark", 1024 * 1024);
+    private final long pipeLowWatermark = Long.getLong("javashell.pipe.lowWatermark", 256 * 1024);
+    private List<PipeStage> lastPipeStages = List.of();
+    
+    // Headless sessions (daemon mode) write here instead of the terminal and inherited stdio
+    private OutputStream sessionOut;
+    // Built-in output when there is neither a terminal nor a session stream (scripts)
+    private final OutputStream standardOut = new FileOutputStream(FileDescriptor.out);
+    private PrintStream err = System.err;
+    private final java.util.Map<String, String> environment = new java.util.HashMap<>();
+    
+    // Exit status of the last command and of each stage of the last pipeline ($? and PIPESTATUS)
+    private int lastStatus = 0;
+    private int[] pipeStatus = new int[] {0};
+    private final int[] singleStatus = new int[1];
+    private int builtInStatus = 0;
+    private boolean pipefail = false;
+    private boolean errexit = false;
+    
+    // Directory state for cd -, pushd/popd/dirs; the session applies directoryChange
+    private Path previousDirectory;
+    private final java.util.Deque<Path> directoryStack = new java.util.ArrayDeque<>();
+    private Path directoryChange;
+    
+    // Reused output of echo and pwd, and the encoded working directory, so tight loops don't allocate
+    private byte[] builtInBuffer = new byte[256];
+    private int builtInLength;
+    private Path encodedDirectory;
+    private byte[] encodedDirectoryBytes;
+    
+    // Flight recording started with trace on
+    private jdk.jfr.Recording traceRecording;
+    
+    public CommandExecutor() {
+        this(Integer.getInteger("javashell.substitution.maxBytes", DEFAULT_SUBSTITUTION_MAX_BYTES));
+    }
+    
+    public CommandExecutor(int substitutionMaxBytes) {
+        this.substitutionMaxBytes = substitutionMaxBytes;
+    }
     
     /**
      * Execute a command (built-in or external)
      */
-    public void execute(ParsedCommand cmd, Path currentDirectory, Terminal terminal) throws IOException {
+    public int execute(ParsedCommand cmd, Path currentDirectory, Terminal terminal) throws IOException {
+        pipeStatus = null;
+        int status = execute(cmd, currentDirectory, terminal, sessionOut);
+        if (pipeStatus == null) {
+            recordStatus(status);
+        } else {
+            // A pipeline already filled in PIPESTATUS
+            lastStatus = status;
+        }
+        return status;
+    }
+    
+    /**
+     * Remember the status of a simple top-level command for $? and PIPESTATUS
+     */
+    public void recordStatus(int status) {
+        lastStatus = status;
+        singleStatus[0] = status;
+        pipeStatus = singleStatus;
+    }
+    
+    public int getLastStatus() {
+        return lastStatus;
+    }
+    
+    /**
+     * Status of the last built-in run through executeBuiltIn
+     */
+    public int getBuiltInStatus() {
+        return builtInStatus;
+    }
+    
+    /**
+     * True when set -e is on and the session should stop after a failing command
+     */
+    public boolean isErrexit() {
+        return errexit;
+    }
+    
+    /**
+     * Run headless: command output and errors go to these streams, and external
+     * commands get an empty stdin instead of inheriting the shell's
+     */
+    public void setSessionStreams(OutputStream out, PrintStream err) {
+        this.sessionOut = out;
+        this.err = err;
+    }
+    
+    public PrintStream getErrorStream() {
+        return err;
+    }
+    
+    /**
+     * Environment variables set with export, applied on top of the shell's own environment
+     */
+    public java.util.Map<String, String> getEnvironment() {
+        return environment;
+    }
+    
+    /**
+     * Execute a command, writing its stdout to the given stream, or to the terminal when it is null
+     */
+    private int execute(ParsedCommand cmd, Path currentDirectory, Terminal terminal, OutputStream stdout)
+            throws IOException {
+        // Structured pipelines pass records between in-process stages
+        if (cmd.isStructured()) {
+            return executeStructured(cmd.getPipeline(), currentDirectory, terminal, stdout);
+        }
+        if (StructuredPipeline.COMMANDS.contains(cmd.getCommand()) && !cmd.isPiped()) {
+            return executeStructured(List.of(cmd), currentDirectory, terminal, stdout);
+        }
+        
         // Handle pipelines
         if (cmd.isPiped() && !cmd.getPipeline().isEmpty()) {
-            executePipeline(cmd.getPipeline(), currentDirectory, terminal);
-            return;
+            return executePipeline(cmd.getPipeline(), currentDirectory, terminal, stdout);
+        }
+        
+        // limit ... -- command runs the wrapped command under its own limits
+        if (isLimitPrefix(cmd)) {
+            return execute(unwrapLimit(cmd), currentDirectory, terminal, stdout);
         }
         
         // Check if it's a built-in command
         if (isBuiltInCommand(cmd.getCommand())) {
+            // Directory changes inside a substitution run in a subshell and have no visible effect
+            if (stdout != null && changesDirectory(cmd.getCommand())) {
+                return 0;
+            }
+            if (!cmd.getRedirection().hasStdoutRedirection() && writeFastBuiltIn(cmd, currentDirectory)) {
+                flushBuiltInOutput(terminal, stdout);
+                builtInStatus = 0;
+                return 0;
+            }
             String output = executeBuiltIn(cmd, currentDirectory);
             if (output != null) {
-                writeOutput(output, cmd.getRedirection(), terminal, currentDirectory);
+                writeOutput(output, cmd.getRedirection(), terminal, currentDirectory, stdout);
             }
+            return builtInStatus;
         } else {
             // Execute external command
-            executeExternal(cmd, currentDirectory, terminal);
+            return executeExternal(cmd, currentDirectory, terminal, stdout);
+        }
+    }
+    
+    /**
+     * Substitution callback that evaluates nested command lines with this executor
+     */
+    public CommandSubstitution substitution(Path currentDirectory) {
+        return new CommandSubstitution() {
+            @Override
+            public String substitute(String commandLine) {
+                try {
+                    return CommandExecutor.this.substitute(commandLine, currentDirectory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e.getMessage(), e);
+                }
+            }
+            
+            @Override
+            public String variable(String name) {
+                return lookupVariable(name);
+            }
+        };
+    }
+    
+    /**
+     * Value of $?, PIPESTATUS (PIPESTATUS, PIPESTATUS[@] or PIPESTATUS[n]) or an exported variable, or null
+     */
+    private String lookupVariable(String name) {
+        if (name.equals("?")) {
+            return Integer.toString(lastStatus);
+        }
+        if (name.equals("PIPESTATUS")) {
+            return Integer.toString(pipeStatus[0]);
+        }
+        if (environment.containsKey(name)) {
+            return environment.get(name);
+        }
+        if (name.startsWith("PIPESTATUS[") && name.endsWith("]")) {
+            String index = name.substring("PIPESTATUS[".length(), name.length() - 1);
+            if (index.equals("@") || index.equals("*")) {
+                StringBuilder result = new StringBuilder();
+                for (int status : pipeStatus) {
+                    if (result.length() > 0) {
+                        result.append(' ');
+                    }
+                    result.append(status);
+                }
+                return result.toString();
+            }
+            try {
+                int i = Integer.parseInt(index);
+                return i >= 0 && i < pipeStatus.length ? Integer.toString(pipeStatus[i]) : "";
+            } catch (NumberFormatException e) {
+                return null;
+            }
         }
+        return null;
+    }
+    
+    /**
+     * Run a command line in-process and return its captured stdout
+     * Built-ins write straight into the buffer without forking. Like bash, its status
+     * becomes $? for the words expanded after it; PIPESTATUS is left alone
+     */
+    public String substitute(String commandLine, Path currentDirectory) throws IOException {
+        ParsedCommand parsed = CommandParser.parse(commandLine, substitution(currentDirectory));
+        CaptureBuffer capture = new CaptureBuffer(substitutionMaxBytes);
+        int[] outerPipeStatus = pipeStatus;
+        lastStatus = execute(parsed, currentDirectory, null, capture);
+        pipeStatus = outerPipeStatus;
+        return capture.toString(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Built-ins that move the session to another directory
+     */
+    public boolean changesDirectory(String command) {
+        return command.equals("cd") || command.equals("pushd") || command.equals("popd")
+                || command.equals("z") || command.equals("j");
+    }
+    
+    /**
+     * Directory that the last cd, pushd, popd or z moved to, or null if it stayed put
+     */
+    public Path takeDirectoryChange() {
+        Path change = directoryChange;
+        directoryChange = null;
+        return change;
     }
     
     /**
      * Execute built-in command and return output
-     * Returns new directory path for cd command
+     * Directory changes are picked up with takeDirectoryChange()
      */
     public String executeBuiltIn(ParsedCommand cmd, Path currentDirectory) {
         String command = cmd.getCommand();
+        builtInStatus = 0;
         
         switch (command) {
             case "cd":
                 return executeCd(cmd, currentDirectory);
+            case "pushd":
+                return executePushd(cmd, currentDirectory);
+            case "popd":
+                return executePopd(currentDirectory);
+            case "dirs":
+                return executeDirs(cmd, currentDirectory);
+            case "z":
+            case "j":
+                return executeJump(cmd, currentDirectory);
             case "pwd":
                 return currentDirectory.toAbsolutePath().toString() + "\n";
             case "echo":
@@ -55,8 +295,20 @@ public class CommandExecutor {
                 return getHelpText();
             case "history":
                 return ""; // Handled separately in shell
+            case "limit":
+                return executeLimit(cmd);
+            case "pipestats":
+                return getPipeStats();
+            case "tee":
+                return builtInError("tee: only supported as a pipeline stage\n");
+            case "export":
+                return executeExport(cmd);
+            case "set":
+                return executeSet(cmd);
+            case "trace":
+                return executeTrace(cmd, currentDirectory);
             default:
-                return "Unknown built-in command: " + command + "\n";
+                return builtInError("Unknown built-in command: " + command + "\n");
         }
     }
     
@@ -65,33 +317,329 @@ public class CommandExecutor {
      */
     private String executeCd(ParsedCommand cmd, Path currentDirectory) {
         List<String> args = cmd.getArgs();
-        
-        if (args.isEmpty()) {
-            // cd with no arguments goes to home directory
-            String home = System.getProperty("user.home");
-            return home != null ? home : currentDirectory.toString();
-        }
-        
-        String target = args.get(0);
+        String target = args.isEmpty() ? "~" : args.get(0);
         Path newPath;
         
         if (target.equals("~") || target.equals("$HOME")) {
+            // cd with no arguments goes to home directory
             String home = System.getProperty("user.home");
             newPath = home != null ? Paths.get(home) : currentDirectory;
         } else if (target.equals("-")) {
-            // cd - goes to previous directory (simplified: use user home)
-            String home = System.getProperty("user.home");
-            newPath = home != null ? Paths.get(home) : currentDirectory;
+            if (previousDirectory == null) {
+                err.println("cd: OLDPWD not set");
+                builtInStatus = 1;
+                return "";
+            }
+            newPath = previousDirectory;
         } else {
             newPath = currentDirectory.resolve(target).normalize();
         }
         
-        if (Files.exists(newPath) && Files.isDirectory(newPath)) {
-            return newPath.toAbsolutePath().toString();
+        // One stat tells apart a missing path from a file
+        try {
+            if (!Files.readAttributes(newPath, BasicFileAttributes.class).isDirectory()) {
+                err.println("cd: " + target + ": Not a directory");
+                builtInStatus = 1;
+                return "";
+            }
+        } catch (IOException e) {
+            err.println("cd: " + target + ": No such file or directory");
+            builtInStatus = 1;
+            return "";
+        }
+        changeDirectory(currentDirectory, newPath);
+        // Like bash, cd - tells you where you ended up
+        return target.equals("-") ? newPath + "\n" : "";
+    }
+    
+    private void changeDirectory(Path from, Path to) {
+        previousDirectory = from;
+        // Targets are resolved against an absolute cwd and normalized already
+        directoryChange = to.isAbsolute() ? to : to.toAbsolutePath().normalize();
+        environment.put("OLDPWD", from.toString());
+        environment.put("PWD", directoryChange.toString());
+    }
+    
+    /**
+     * pushd DIR saves the current directory on the stack and changes to DIR;
+     * pushd alone swaps the current directory with the top of the stack
+     */
+    private String executePushd(ParsedCommand cmd, Path currentDirectory) {
+        Path target;
+        if (cmd.getArgs().isEmpty()) {
+            if (directoryStack.isEmpty()) {
+                return builtInError("pushd: no other directory\n");
+            }
+            target = directoryStack.pop();
         } else {
-            System.err.println("cd: " + target + ": No such file or directory");
-            return currentDirectory.toString();
+            target = currentDirectory.resolve(cmd.getArgs().get(0)).normalize();
+            if (!Files.isDirectory(target)) {
+                return builtInError("pushd: " + cmd.getArgs().get(0) + ": No such file or directory\n");
+            }
+        }
+        directoryStack.push(currentDirectory);
+        changeDirectory(currentDirectory, target);
+        return formatDirs(directoryChange, false);
+    }
+    
+    private String executePopd(Path currentDirectory) {
+        if (directoryStack.isEmpty()) {
+            return builtInError("popd: directory stack empty\n");
+        }
+        Path target = directoryStack.pop();
+        changeDirectory(currentDirectory, target);
+        return formatDirs(directoryChange, false);
+    }
+    
+    /**
+     * dirs [-c | -v]: show the directory stack, clear it, or show it numbered
+     */
+    private String executeDirs(ParsedCommand cmd, Path currentDirectory) {
+        List<String> args = cmd.getArgs();
+        if (args.contains("-c")) {
+            directoryStack.clear();
+            return "";
+        }
+        return formatDirs(currentDirectory, args.contains("-v"));
+    }
+    
+    private String formatDirs(Path currentDirectory, boolean numbered) {
+        List<Path> dirs = new java.util.ArrayList<>();
+        dirs.add(currentDirectory);
+        dirs.addAll(directoryStack);
+        
+        String home = System.getProperty("user.home");
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < dirs.size(); i++) {
+            String dir = dirs.get(i).toString();
+            if (home != null && (dir.equals(home) || dir.startsWith(home + "/"))) {
+                dir = "~" + dir.substring(home.length());
+            }
+            if (numbered) {
+                result.append(String.format("%2d  %s%n", i, dir));
+            } else {
+                result.append(i > 0 ? " " : "").append(dir);
+            }
+        }
+        return numbered ? result.toString() : result.append('\n').toString();
+    }
+    
+    /**
+     * z KEYWORD... jumps to the best ranked visited directory matching the keywords;
+     * z -l [KEYWORD...] lists the matches with their frecency
+     */
+    private String executeJump(ParsedCommand cmd, Path currentDirectory) {
+        List<String> args = cmd.getArgs();
+        FrecencyIndex index;
+        try {
+            index = FrecencyIndex.shared();
+        } catch (IOException e) {
+            return builtInError(cmd.getCommand() + ": cannot open index: " + e.getMessage() + "\n");
+        }
+        
+        if (args.isEmpty() || args.get(0).equals("-l")) {
+            List<String> keywords = args.isEmpty() ? List.of() : args.subList(1, args.size());
+            List<String> lines = index.list(keywords, 20);
+            return lines.isEmpty() ? "" : String.join("\n", lines) + "\n";
+        }
+        
+        // Skip directories that were removed since they were visited
+        Path target;
+        while ((target = index.best(args, currentDirectory)) != null && !Files.isDirectory(target)) {
+            index.remove(target);
+        }
+        if (target == null) {
+            return builtInError(cmd.getCommand() + ": no match for " + String.join(" ", args) + "\n");
+        }
+        changeDirectory(currentDirectory, target);
+        return "";
+    }
+    
+    /**
+     * trace on|off|dump FILE: record parse, spawn, pump and wait events with Flight Recorder.
+     * A recording covers the whole JVM, so headless sessions, which share it (daemon
+     * mode), can't trace on their own
+     */
+    private String executeTrace(ParsedCommand cmd, Path currentDirectory) {
+        if (sessionOut != null) {
+            return builtInError("trace: not available in daemon sessions, the recording would include every "
+                    + "session; start the server with -XX:StartFlightRecording instead\n");
+        }
+        List<String> args = cmd.getArgs();
+        String action = args.isEmpty() ? "" : args.get(0);
+        boolean recording = traceRecording != null && traceRecording.getState() == jdk.jfr.RecordingState.RUNNING;
+        
+        switch (action) {
+            case "on":
+                if (recording) {
+                    return "trace: already on\n";
+                }
+                if (traceRecording != null) {
+                    traceRecording.close();
+                }
+                traceRecording = new jdk.jfr.Recording();
+                traceRecording.setName("javashell trace");
+                for (Class<? extends jdk.jfr.Event> eventType : ShellEvents.ALL) {
+                    traceRecording.enable(eventType).withoutThreshold();
+                }
+                traceRecording.start();
+                return "";
+            case "off":
+                if (!recording) {
+                    return builtInError("trace: not on\n");
+                }
+                traceRecording.stop();
+                return "";
+            case "dump":
+                if (args.size() != 2) {
+                    return builtInError("usage: trace dump FILE\n");
+                }
+                if (traceRecording == null) {
+                    return builtInError("trace: nothing recorded, use trace on first\n");
+                }
+                Path file = currentDirectory.resolve(args.get(1)).normalize();
+                try {
+                    traceRecording.dump(file);
+                    return summarizeTrace(file);
+                } catch (IOException e) {
+                    return builtInError("trace: " + e.getMessage() + "\n");
+                }
+            case "":
+                return "trace: " + (recording ? "on" : "off") + "\n";
+            default:
+                return builtInError("usage: trace on|off|dump FILE\n");
+        }
+    }
+    
+    /**
+     * Count and total time per phase in a dumped trace; Parse Stage time is part of
+     * Parse time, so it is listed on its own rather than added to it
+     */
+    private String summarizeTrace(Path file) throws IOException {
+        java.util.Map<String, long[]> phases = new java.util.TreeMap<>();
+        for (jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+            long[] totals = phases.computeIfAbsent(event.getEventType().getLabel(), k -> new long[2]);
+            totals[0]++;
+            totals[1] += event.getDuration().toNanos();
+        }
+        StringBuilder result = new StringBuilder("trace: wrote " + file + "\n");
+        phases.forEach((phase, totals) -> result.append(String.format("  %-11s %8d events %12.3f ms%n",
+                phase, totals[0], totals[1] / 1e6)));
+        return result.toString();
+    }
+    
+    /**
+     * Execute limit command without a wrapped command: show or update session defaults
+     */
+    private String executeLimit(ParsedCommand cmd) {
+        if (cmd.getArgs().isEmpty()) {
+            return "limit: " + sessionLimits + "\n";
+        }
+        ResourceLimits updated = new ResourceLimits(sessionLimits);
+        try {
+            int next = updated.parseOptions(cmd.getArgs(), 0);
+            if (next < cmd.getArgs().size()) {
+                return builtInError("limit: unexpected argument " + cmd.getArgs().get(next) + "\n");
+            }
+        } catch (IllegalArgumentException e) {
+            return builtInError("limit: " + e.getMessage() + "\n");
+        }
+        sessionLimits.setTimeoutMillis(updated.getTimeoutMillis());
+        sessionLimits.setMemoryBytes(updated.getMemoryBytes());
+        sessionLimits.setReport(updated.isReport());
+        return "";
+    }
+    
+    /**
+     * Execute export command: set NAME=VALUE for later external commands, or list them
+     */
+    private String executeExport(ParsedCommand cmd) {
+        if (cmd.getArgs().isEmpty()) {
+            StringBuilder result = new StringBuilder();
+            new java.util.TreeMap<>(environment).forEach((name, value) ->
+                    result.append("export ").append(name).append('=').append(value).append('\n'));
+            return result.toString();
+        }
+        for (String arg : cmd.getArgs()) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                return builtInError("export: expected NAME=VALUE: " + arg + "\n");
+            }
+            environment.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        return "";
+    }
+    
+    /**
+     * Execute set command: -e/+e and -o/+o pipefail|errexit, or list options
+     */
+    private String executeSet(ParsedCommand cmd) {
+        List<String> args = cmd.getArgs();
+        if (args.isEmpty() || (args.size() == 1 && args.get(0).equals("-o"))) {
+            return "errexit         " + (errexit ? "on" : "off") + "\n" +
+                    "pipefail        " + (pipefail ? "on" : "off") + "\n";
+        }
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            boolean enable = arg.startsWith("-");
+            if (arg.equals("-e") || arg.equals("+e")) {
+                errexit = enable;
+            } else if ((arg.equals("-o") || arg.equals("+o")) && i + 1 < args.size()) {
+                String option = args.get(++i);
+                if (option.equals("pipefail")) {
+                    pipefail = enable;
+                } else if (option.equals("errexit")) {
+                    errexit = enable;
+                } else {
+                    return builtInError("set: " + option + ": invalid option name\n");
+                }
+            } else {
+                return builtInError("set: " + arg + ": invalid option\n");
+            }
+        }
+        return "";
+    }
+    
+    private String builtInError(String message) {
+        builtInStatus = 1;
+        return message;
+    }
+    
+    /**
+     * Check for the "limit [options] -- command" form
+     */
+    private boolean isLimitPrefix(ParsedCommand cmd) {
+        return "limit".equals(cmd.getCommand()) && cmd.getArgs().contains("--");
+    }
+    
+    /**
+     * Turn "limit [options] -- command args" into command with limits attached
+     */
+    private ParsedCommand unwrapLimit(ParsedCommand cmd) {
+        ResourceLimits limits = new ResourceLimits(sessionLimits);
+        int commandIndex;
+        try {
+            commandIndex = limits.parseOptions(cmd.getArgs(), 0);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("limit: " + e.getMessage());
+        }
+        if (commandIndex >= cmd.getArgs().size()) {
+            throw new IllegalArgumentException("limit: missing command after --");
         }
+        
+        ParsedCommand wrapped = new ParsedCommand();
+        wrapped.setCommand(cmd.getArgs().get(commandIndex));
+        wrapped.setArgs(new java.util.ArrayList<>(cmd.getArgs().subList(commandIndex + 1, cmd.getArgs().size())));
+        wrapped.setRedirection(cmd.getRedirection());
+        wrapped.setLimits(limits);
+        return wrapped;
+    }
+    
+    /**
+     * Limits that apply to a command: its own, or the session defaults
+     */
+    private ResourceLimits effectiveLimits(ParsedCommand cmd) {
+        return cmd.getLimits() != null ? cmd.getLimits() : sessionLimits;
     }
     
     /**
@@ -108,27 +656,130 @@ public class CommandExecutor {
         return result + "\n";
     }
     
+    /**
+     * echo and pwd encode straight into the reusable output buffer
+     * Returns false for other commands
+     */
+    private boolean writeFastBuiltIn(ParsedCommand cmd, Path currentDirectory) {
+        builtInLength = 0;
+        switch (cmd.getCommand()) {
+            case "echo":
+                List<String> args = cmd.getArgs();
+                for (int i = 0; i < args.size(); i++) {
+                    if (i > 0) {
+                        appendByte(' ');
+                    }
+                    appendUtf8(args.get(i));
+                }
+                appendByte('\n');
+                return true;
+            case "pwd":
+                if (currentDirectory != encodedDirectory) {
+                    encodedDirectory = currentDirectory;
+                    encodedDirectoryBytes = currentDirectory.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+                }
+                for (byte b : encodedDirectoryBytes) {
+                    appendByte(b);
+                }
+                appendByte('\n');
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private void flushBuiltInOutput(Terminal terminal, OutputStream stdout) throws IOException {
+        if (stdout != null) {
+            stdout.write(builtInBuffer, 0, builtInLength);
+        } else if (terminal != null) {
+            terminal.writer().flush();
+            terminal.output().write(builtInBuffer, 0, builtInLength);
+            terminal.output().flush();
+        } else {
+            standardOut.write(builtInBuffer, 0, builtInLength);
+        }
+    }
+    
+    private void appendByte(int b) {
+        if (builtInLength == builtInBuffer.length) {
+            builtInBuffer = Arrays.copyOf(builtInBuffer, builtInLength * 2);
+        }
+        builtInBuffer[builtInLength++] = (byte) b;
+    }
+    
+    private void appendUtf8(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                appendByte(c);
+            } else if (c < 0x800) {
+                appendByte(0xc0 | (c >> 6));
+                appendByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                appendByte(0xf0 | (codePoint >> 18));
+                appendByte(0x80 | ((codePoint >> 12) & 0x3f));
+                appendByte(0x80 | ((codePoint >> 6) & 0x3f));
+                appendByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                appendByte('?');
+            } else {
+                appendByte(0xe0 | (c >> 12));
+                appendByte(0x80 | ((c >> 6) & 0x3f));
+                appendByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+    
     /**
      * Get help text
      */
     private String getHelpText() {
         return """
                 Built-in Commands:
-                  cd [directory]     - Change directory (default: home directory)
+                  cd [directory]     - Change directory (default: home directory, - for previous)
+                  pushd [dir], popd  - Change directory and push/pop the directory stack
+                  dirs [-v] [-c]     - Show or clear the directory stack
+                  z|j KEYWORD...     - Jump to the most frecent visited directory matching
+                  z -l [KEYWORD...]  - List visited directories by frecency
                   pwd                - Print working directory
                   echo [args...]     - Print arguments
                   exit               - Exit shell
                   help               - Show this help message
                   history            - Show command history
+                  limit [--time T] [--mem M] [--report on|off] [-- command]
+                                     - Run command with limits, or set session defaults;
+                                       --report on reports wall time and peak memory of
+                                       every command, not just limited ones
+                  pipestats          - Show throughput and stalls of the last pipeline
+                  export NAME=VALUE  - Set an environment variable for external commands
+                  set [-e] [-o pipefail]
+                                     - Stop on failure / fail pipelines on any failing stage
+                  trace on|off|dump FILE
+                                     - Record parse/spawn/pump/wait phases with Flight Recorder
+                
+                Exit Status:
+                  $?                 - Exit status of the last command
+                  ${PIPESTATUS[@]}   - Exit status of every stage of the last pipeline
                 
                 Redirection:
                   command > file     - Redirect stdout to file (overwrite)
                   command >> file    - Redirect stdout to file (append)
                   command < file     - Redirect stdin from file
                   command 2> file    - Redirect stderr to file
+                  command > a > b    - Copy stdout to several files
                 
                 Pipelines:
                   command1 | command2 - Pipe stdout of command1 to stdin of command2
+                  cmd | tee [-a] files... | cmd2
+                                      - Copy the stream to files and the next stage
+                
+                Structured Pipelines:
+                  from-jsonl file |> where FIELD OP VALUE |> select FIELD... |> sort-by FIELD |> to-jsonl
+                                      - Filter JSON Lines in-process; OP is ==, !=, =~, lt, le, gt, ge
+                
+                Command Substitution:
+                  $(command), `command` - Replace with the output of command
                 
                 Features:
                   - Auto-completion (Tab key)
@@ -141,22 +792,33 @@ public class CommandExecutor {
     /**
      * Check if command is built-in
      */
-    private boolean isBuiltInCommand(String command) {
+    public boolean isBuiltInCommand(String command) {
         return command != null && (
                 command.equals("cd") ||
                 command.equals("pwd") ||
                 command.equals("echo") ||
                 command.equals("exit") ||
                 command.equals("help") ||
-                command.equals("history")
+                command.equals("history") ||
+                command.equals("limit") ||
+                command.equals("pipestats") ||
+                command.equals("tee") ||
+                command.equals("export") ||
+                command.equals("set") ||
+                command.equals("trace") ||
+                command.equals("pushd") ||
+                command.equals("popd") ||
+                command.equals("dirs") ||
+                command.equals("z") ||
+                command.equals("j")
         );
     }
     
     /**
      * Execute external command
      */
-    private void executeExternal(ParsedCommand cmd, Path currentDirectory, Terminal terminal) 
-            throws IOException {
+    private int executeExternal(ParsedCommand cmd, Path currentDirectory, Terminal terminal,
+                                OutputStream stdout) throws IOException {
         ProcessBuilder processBuilder = new ProcessBuilder();
         List<String> commandAndArgs = new java.util.ArrayList<>();
         commandAndArgs.add(cmd.getCommand());
@@ -164,18 +826,23 @@ public class CommandExecutor {
         
         processBuilder.command(commandAndArgs);
         processBuilder.directory(currentDirectory.toFile());
+        processBuilder.environment().putAll(environment);
         
         // Handle redirections
         RedirectionInfo redir = cmd.getRedirection();
         
         // Setup stdout redirection
-        if (redir.hasStdoutRedirection()) {
+        if (redir.hasMultipleStdoutRedirections()) {
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+        } else if (redir.hasStdoutRedirection()) {
             Path outputFile = currentDirectory.resolve(redir.getStdoutFile()).normalize();
             if (redir.getStdoutMode() == RedirectionMode.APPEND) {
                 processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(outputFile.toFile()));
             } else {
                 processBuilder.redirectOutput(ProcessBuilder.Redirect.to(outputFile.toFile()));
             }
+        } else if (stdout != null) {
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.PIPE);
         } else {
             processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
         }
@@ -184,6 +851,8 @@ public class CommandExecutor {
         if (redir.hasStdinRedirection()) {
             Path inputFile = currentDirectory.resolve(redir.getStdinFile()).normalize();
             processBuilder.redirectInput(ProcessBuilder.Redirect.from(inputFile.toFile()));
+        } else if (sessionOut != null) {
+            processBuilder.redirectInput(ProcessBuilder.Redirect.PIPE);
         } else {
             processBuilder.redirectInput(ProcessBuilder.Redirect.INHERIT);
         }
@@ -196,70 +865,137 @@ public class CommandExecutor {
             } else {
                 processBuilder.redirectError(ProcessBuilder.Redirect.to(errorFile.toFile()));
             }
+        } else if (sessionOut != null) {
+            processBuilder.redirectError(ProcessBuilder.Redirect.PIPE);
         } else {
             processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
         }
         
+        ResourceLimits limits = effectiveLimits(cmd);
+        Process process = null;
+        ProcessWatchdog watchdog = null;
+        
         try {
-            Process process = processBuilder.start();
-            int exitCode = process.waitFor();
+            ShellEvents.Spawn spawnEvent = startSpawnEvent(commandAndArgs);
+            long startNanos = System.nanoTime();
+            process = processBuilder.start();
+            spawnEvent.commit();
+            Thread errorPump = forwardErrors(process, processBuilder);
+            if (sessionOut != null && !redir.hasStdinRedirection()) {
+                process.getOutputStream().close();
+            }
+            if (limits.isWatched()) {
+                watchdog = ProcessWatchdog.watch(process, limits, startNanos);
+            }
+            FanOut fanOut = null;
+            if (redir.hasMultipleStdoutRedirections()) {
+                fanOut = startFanOut(cmd.getCommand(), Channels.newChannel(process.getInputStream()),
+                        openStdoutSinks(redir, currentDirectory));
+            } else if (stdout != null && !redir.hasStdoutRedirection()) {
+                captureOutput(process, stdout);
+            }
+            int exitCode = waitFor(process, cmd.getCommand());
+            if (fanOut != null) {
+                fanOut.join();
+            }
+            if (errorPump != null) {
+                errorPump.join();
+            }
             
             // If no redirection, output goes to terminal (already handled by INHERIT)
-            // Exit code is silently ignored unless needed
+            return exitCode;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            destroyAll(List.of(process));
             throw new IOException("Process interrupted", e);
         } catch (IOException e) {
-            System.err.println("Error executing command: " + e.getMessage());
+            err.println("Error executing command: " + e.getMessage());
             throw e;
+        } finally {
+            if (watchdog != null) {
+                err.println(watchdog.finish(cmd.getCommand()));
+            }
         }
     }
     
     /**
      * Execute pipeline of commands
-     * Simplified version: handles external commands only for now
+     * Stages are connected by bounded PipeStage pumps; built-ins produce their output in-process
      */
-    private void executePipeline(List<ParsedCommand> pipeline, Path currentDirectory, Terminal terminal) 
-            throws IOException {
+    private int executePipeline(List<ParsedCommand> pipeline, Path currentDirectory, Terminal terminal,
+                                OutputStream stdout) throws IOException {
         if (pipeline.isEmpty()) {
-            return;
+            return 0;
         }
         
+        int[] statuses = new int[pipeline.size()];
+        List<Integer> processStages = new java.util.ArrayList<>();
         List<Process> processes = new java.util.ArrayList<>();
-        List<Thread> transferThreads = new java.util.ArrayList<>();
+        List<ProcessWatchdog> watchdogs = new java.util.ArrayList<>();
+        List<String> stageNames = new java.util.ArrayList<>();
+        List<PipeStage> pipeStages = new java.util.ArrayList<>();
+        List<FanOut> fanOuts = new java.util.ArrayList<>();
+        List<Thread> errorPumps = new java.util.ArrayList<>();
+        
+        // Output of the previous stage, waiting to be connected to the next one
+        ReadableByteChannel upstream = null;
+        String upstreamName = null;
+        Process lastProcess = null;
+        
+        // A tee stage waiting for the next stage's stdin to complete its sinks
+        List<WritableByteChannel> teeSinks = null;
         
         try {
             // Start all processes in pipeline
             for (int i = 0; i < pipeline.size(); i++) {
                 ParsedCommand cmd = pipeline.get(i);
+                if (isLimitPrefix(cmd)) {
+                    cmd = unwrapLimit(cmd);
+                }
                 
-                // For now, skip built-in commands in pipeline (handle separately)
-                if (isBuiltInCommand(cmd.getCommand())) {
-                    // Handle built-in command output as string and feed to next command
+                // tee reads its input once and copies it to its files and to stdout
+                if (cmd.getCommand().equals("tee")) {
+                    if (teeSinks != null) {
+                        fanOuts.add(startFanOut("tee", upstream, teeSinks));
+                        upstream = null;
+                    }
+                    teeSinks = openTeeSinks(cmd, currentDirectory);
+                    if (upstream == null) {
+                        upstream = Channels.newChannel(InputStream.nullInputStream());
+                    }
                     if (i == pipeline.size() - 1) {
-                        // Last command - just execute and output
-                        String output = executeBuiltIn(cmd, currentDirectory);
-                        if (output != null) {
-                            RedirectionInfo redir = cmd.getRedirection();
-                            if (redir.hasStdoutRedirection()) {
-                                Path outputFile = currentDirectory.resolve(redir.getStdoutFile()).normalize();
-                                if (redir.getStdoutMode() == RedirectionMode.APPEND) {
-                                    Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                                } else {
-                                    Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                                }
-                            } else {
-                                terminal.writer().print(output);
-                                terminal.writer().flush();
-                            }
-                        }
-                        return; // Built-in as last command - done
+                        teeSinks.addAll(openFinalSinks(cmd.getRedirection(), currentDirectory, terminal, stdout));
+                        fanOuts.add(startFanOut("tee", upstream, teeSinks));
+                        upstream = null;
+                        teeSinks = null;
                     }
-                    // Built-in in middle - would need special handling
-                    // For now, convert echo to external process
-                    if (!cmd.getCommand().equals("echo")) {
-                        terminal.writer().println("Warning: built-in command '" + cmd.getCommand() + "' in pipeline may not work correctly");
+                    continue;
+                }
+                
+                // Built-ins ignore stdin and run in-process
+                if (isBuiltInCommand(cmd.getCommand())) {
+                    if (teeSinks != null) {
+                        fanOuts.add(startFanOut("tee", upstream, teeSinks));
+                        upstream = null;
+                        teeSinks = null;
+                    }
+                    if (upstream != null) {
+                        upstream.close();
+                        upstream = null;
+                    }
+                    // cd, pushd, popd and z in a pipeline run in a subshell and have no visible effect
+                    String output = changesDirectory(cmd.getCommand()) ? "" : executeBuiltIn(cmd, currentDirectory);
+                    if (output == null) {
+                        output = "";
+                    }
+                    statuses[i] = changesDirectory(cmd.getCommand()) ? 0 : builtInStatus;
+                    if (i == pipeline.size() - 1) {
+                        writeOutput(output, cmd.getRedirection(), terminal, currentDirectory, stdout);
+                    } else {
+                        upstream = Channels.newChannel(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+                        upstreamName = cmd.getCommand();
                     }
+                    continue;
                 }
                 
                 List<String> commandAndArgs = new java.util.ArrayList<>();
@@ -268,14 +1004,17 @@ public class CommandExecutor {
                 
                 ProcessBuilder builder = new ProcessBuilder(commandAndArgs);
                 builder.directory(currentDirectory.toFile());
+                builder.environment().putAll(environment);
                 
                 // First command in pipeline
                 if (i == 0) {
                     if (cmd.getRedirection().hasStdinRedirection()) {
                         Path inputFile = currentDirectory.resolve(cmd.getRedirection().getStdinFile()).normalize();
                         builder.redirectInput(ProcessBuilder.Redirect.from(inputFile.toFile()));
-                    } else {
+                    } else if (sessionOut != null) {
                         builder.redirectInput(ProcessBuilder.Redirect.PIPE);
+                    } else {
+                        builder.redirectInput(ProcessBuilder.Redirect.INHERIT);
                     }
                 } else {
                     builder.redirectInput(ProcessBuilder.Redirect.PIPE);
@@ -284,13 +1023,17 @@ public class CommandExecutor {
                 // Last command in pipeline
                 if (i == pipeline.size() - 1) {
                     RedirectionInfo redir = cmd.getRedirection();
-                    if (redir.hasStdoutRedirection()) {
+                    if (redir.hasMultipleStdoutRedirections()) {
+                        builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
+                    } else if (redir.hasStdoutRedirection()) {
                         Path outputFile = currentDirectory.resolve(redir.getStdoutFile()).normalize();
                         if (redir.getStdoutMode() == RedirectionMode.APPEND) {
                             builder.redirectOutput(ProcessBuilder.Redirect.appendTo(outputFile.toFile()));
                         } else {
                             builder.redirectOutput(ProcessBuilder.Redirect.to(outputFile.toFile()));
                         }
+                    } else if (stdout != null) {
+                        builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
                     } else {
                         builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
                     }
@@ -303,45 +1046,118 @@ public class CommandExecutor {
                             builder.redirectError(ProcessBuilder.Redirect.to(errorFile.toFile()));
                         }
                     } else {
-                        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                        builder.redirectError(sessionOut != null ? ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.INHERIT);
                     }
                 } else {
                     builder.redirectOutput(ProcessBuilder.Redirect.PIPE);
-                    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                    builder.redirectError(sessionOut != null ? ProcessBuilder.Redirect.PIPE : ProcessBuilder.Redirect.INHERIT);
                 }
                 
+                ShellEvents.Spawn spawnEvent = startSpawnEvent(commandAndArgs);
+                long startNanos = System.nanoTime();
                 Process process = builder.start();
+                spawnEvent.commit();
                 processes.add(process);
+                processStages.add(i);
+                Thread errorPump = forwardErrors(process, builder);
+                if (errorPump != null) {
+                    errorPumps.add(errorPump);
+                }
+                ResourceLimits limits = effectiveLimits(cmd);
+                watchdogs.add(limits.isWatched() ? ProcessWatchdog.watch(process, limits, startNanos) : null);
+                stageNames.add(cmd.getCommand());
                 
-                // Connect previous process output to current process input
-                if (i > 0 && processes.size() >= 2) {
-                    Process prevProcess = processes.get(processes.size() - 2);
-                    Process currProcess = process;
-                    
-                    Thread transferThread = new Thread(() -> {
-                        try (InputStream in = prevProcess.getInputStream();
-                             OutputStream out = currProcess.getOutputStream()) {
-                            in.transferTo(out);
-                        } catch (IOException e) {
-                            // Ignore closed streams
+                // Connect previous stage output to current process input
+                if (teeSinks != null) {
+                    teeSinks.add(Channels.newChannel(process.getOutputStream()));
+                    fanOuts.add(startFanOut("tee | " + cmd.getCommand(), upstream, teeSinks));
+                    teeSinks = null;
+                } else if (upstream != null) {
+                    PipeStage stage = new PipeStage(upstreamName + " | " + cmd.getCommand(), upstream,
+                            Channels.newChannel(process.getOutputStream()), bufferPool,
+                            pipeHighWatermark, pipeLowWatermark);
+                    stage.start();
+                    pipeStages.add(stage);
+                } else {
+                    // Nothing feeds this stage; an empty stdin ends its input right away
+                    process.getOutputStream().close();
+                }
+                
+                if (i < pipeline.size() - 1) {
+                    upstream = Channels.newChannel(process.getInputStream());
+                    upstreamName = cmd.getCommand();
+                } else {
+                    upstream = null;
+                    lastProcess = process;
+                }
+            }
+            
+            // With pipefail, the first failing stage tears the rest down instead of letting them drain
+            java.util.concurrent.atomic.AtomicInteger failedStage = new java.util.concurrent.atomic.AtomicInteger(-1);
+            if (pipefail) {
+                for (int i = 0; i < statuses.length; i++) {
+                    if (statuses[i] != 0 && failedStage.compareAndSet(-1, i)) {
+                        destroyAll(processes);
+                    }
+                }
+                for (int i = 0; i < processes.size(); i++) {
+                    int stage = processStages.get(i);
+                    processes.get(i).onExit().thenAccept(exited -> {
+                        if (exited.exitValue() != 0 && failedStage.compareAndSet(-1, stage)) {
+                            destroyAll(processes);
                         }
                     });
-                    transferThread.start();
-                    transferThreads.add(transferThread);
                 }
             }
             
-            // Wait for all transfer threads
-            for (Thread thread : transferThreads) {
-                thread.join();
+            // Drain the last stage into its output files or the substitution buffer
+            RedirectionInfo lastRedir = pipeline.get(pipeline.size() - 1).getRedirection();
+            if (lastProcess != null && lastRedir.hasMultipleStdoutRedirections()) {
+                fanOuts.add(startFanOut(stageNames.get(stageNames.size() - 1),
+                        Channels.newChannel(lastProcess.getInputStream()),
+                        openStdoutSinks(lastRedir, currentDirectory)));
+            } else if (stdout != null && lastProcess != null && !lastRedir.hasStdoutRedirection()) {
+                try {
+                    captureOutput(lastProcess, stdout);
+                } catch (IOException e) {
+                    // A pipefail teardown closes the last stage's output under us
+                    if (failedStage.get() < 0) {
+                        throw e;
+                    }
+                }
             }
             
+            // Wait for all pumps
+            for (PipeStage stage : pipeStages) {
+                stage.join();
+            }
+            for (FanOut fanOut : fanOuts) {
+                fanOut.join();
+            }
+            for (Thread errorPump : errorPumps) {
+                errorPump.join();
+            }
+            lastPipeStages = pipeStages;
+            
             // Wait for all processes
-            for (Process process : processes) {
-                if (process != null) {
-                    process.waitFor();
+            for (int i = 0; i < processes.size(); i++) {
+                statuses[processStages.get(i)] = waitFor(processes.get(i), stageNames.get(i));
+            }
+            
+            pipeStatus = statuses;
+            if (failedStage.get() >= 0) {
+                return statuses[failedStage.get()];
+            }
+            if (pipefail) {
+                // Rightmost failing stage, like bash
+                for (int i = statuses.length - 1; i >= 0; i--) {
+                    if (statuses[i] != 0) {
+                        return statuses[i];
+                    }
                 }
+                return 0;
             }
+            return statuses[statuses.length - 1];
             
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -351,24 +1167,253 @@ public class CommandExecutor {
                 }
             }
             throw new IOException("Pipeline interrupted", e);
+        } catch (IOException e) {
+            // e.g. a substitution buffer overflowed behind tee; don't leave the rest running
+            destroyAll(processes);
+            throw e;
+        } finally {
+            // Also on failures, so no poller or leaf cgroup outlives the pipeline
+            for (int i = 0; i < watchdogs.size(); i++) {
+                if (watchdogs.get(i) != null) {
+                    err.println(watchdogs.get(i).finish(stageNames.get(i)));
+                }
+            }
         }
     }
     
     /**
-     * Write output to terminal or file based on redirection
+     * Terminate every process of a pipeline together with its descendants
      */
-    private void writeOutput(String output, RedirectionInfo redir, Terminal terminal, Path currentDirectory) 
+    private static void destroyAll(List<Process> processes) {
+        for (Process process : processes) {
+            if (process.isAlive()) {
+                process.descendants().forEach(ProcessHandle::destroy);
+                process.destroy();
+            }
+        }
+    }
+    
+    /**
+     * Execute a |> pipeline, writing records as JSON Lines to the last stage's stdout
+     */
+    private int executeStructured(List<ParsedCommand> stages, Path currentDirectory, Terminal terminal,
+                                   OutputStream stdout) throws IOException {
+        ParsedCommand last = stages.get(stages.size() - 1);
+        List<WritableByteChannel> sinks = openFinalSinks(last.getRedirection(), currentDirectory, terminal, stdout);
+        
+        OutputStream target = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (WritableByteChannel sink : sinks) {
+                    java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        sink.write(buffer);
+                    }
+                }
+            }
+            
+            @Override
+            public void close() throws IOException {
+                for (WritableByteChannel sink : sinks) {
+                    sink.close();
+                }
+            }
+        };
+        
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024)) {
+            // Headless sessions have no stdin of their own
+            InputStream in = sessionOut != null ? null : System.in;
+            return StructuredPipeline.execute(stages, currentDirectory, in, out, err);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            return 1;
+        }
+    }
+    
+    /**
+     * Start copying source to every sink, bounded by the pipeline high watermark
+     */
+    private FanOut startFanOut(String name, ReadableByteChannel source, List<WritableByteChannel> sinks) {
+        FanOut fanOut = new FanOut(name, source, sinks, fanOutPool, pipeHighWatermark);
+        fanOut.start();
+        return fanOut;
+    }
+    
+    /**
+     * Open every stdout redirection target of a command
+     */
+    private List<WritableByteChannel> openStdoutSinks(RedirectionInfo redir, Path currentDirectory)
             throws IOException {
-        if (redir.hasStdoutRedirection()) {
-            Path outputFile = currentDirectory.resolve(redir.getStdoutFile()).normalize();
-            if (redir.getStdoutMode() == RedirectionMode.APPEND) {
-                Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        List<WritableByteChannel> sinks = new java.util.ArrayList<>();
+        List<String> files = redir.getStdoutFiles();
+        List<RedirectionMode> modes = redir.getStdoutModes();
+        for (int i = 0; i < files.size(); i++) {
+            sinks.add(openFile(currentDirectory.resolve(files.get(i)).normalize(), modes.get(i)));
+        }
+        return sinks;
+    }
+    
+    /**
+     * Open the files named by tee's arguments (-a appends)
+     */
+    private List<WritableByteChannel> openTeeSinks(ParsedCommand cmd, Path currentDirectory) throws IOException {
+        RedirectionMode mode = RedirectionMode.OVERWRITE;
+        List<WritableByteChannel> sinks = new java.util.ArrayList<>();
+        for (String arg : cmd.getArgs()) {
+            if (arg.equals("-a")) {
+                mode = RedirectionMode.APPEND;
             } else {
-                Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                sinks.add(openFile(currentDirectory.resolve(arg).normalize(), mode));
             }
-        } else {
+        }
+        return sinks;
+    }
+    
+    /**
+     * Sinks for the stdout of a final pipeline stage: its files, the stdout stream or the terminal
+     */
+    private List<WritableByteChannel> openFinalSinks(RedirectionInfo redir, Path currentDirectory,
+                                                     Terminal terminal, OutputStream stdout) throws IOException {
+        if (redir.hasStdoutRedirection()) {
+            return openStdoutSinks(redir, currentDirectory);
+        }
+        // The terminal or session stream stays open after the pipeline, so closing the sink only flushes it
+        OutputStream target = stdout != null ? stdout : terminal != null ? terminal.output() : standardOut;
+        OutputStream out = new FilterOutputStream(target) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+            
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        return List.of(Channels.newChannel(out));
+    }
+    
+    private static FileChannel openFile(Path file, RedirectionMode mode) throws IOException {
+        if (mode == RedirectionMode.APPEND) {
+            return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+    
+    /**
+     * Per-stage counters of the most recent pipeline
+     */
+    private String getPipeStats() {
+        if (lastPipeStages.isEmpty()) {
+            return "No pipeline stages recorded.\n";
+        }
+        StringBuilder result = new StringBuilder();
+        for (PipeStage stage : lastPipeStages) {
+            result.append(stage.stats()).append('\n');
+        }
+        return result.toString();
+    }
+    
+    /**
+     * In a headless session, forward a process's piped stderr to the session's error stream
+     * Returns the forwarding thread, if any
+     */
+    private Thread forwardErrors(Process process, ProcessBuilder builder) {
+        if (sessionOut == null) {
+            return null;
+        }
+        if (builder.redirectError() != ProcessBuilder.Redirect.PIPE) {
+            return null;
+        }
+        PrintStream target = err;
+        String name = builder.command().get(0) + " 2>";
+        Thread pump = new Thread(() -> {
+            try (InputStream in = process.getErrorStream()) {
+                ShellEvents.Pump event = new ShellEvents.Pump();
+                event.begin();
+                event.bytes = in.transferTo(target);
+                target.flush();
+                if (event.shouldCommit()) {
+                    event.name = name;
+                    event.commit();
+                }
+            } catch (IOException e) {
+                // Ignore closed streams
+            }
+        });
+        pump.setDaemon(true);
+        pump.start();
+        return pump;
+    }
+    
+    private static ShellEvents.Spawn startSpawnEvent(List<String> commandAndArgs) {
+        ShellEvents.Spawn event = new ShellEvents.Spawn();
+        event.begin();
+        event.command = commandAndArgs.get(0);
+        event.argc = commandAndArgs.size() - 1;
+        return event;
+    }
+    
+    private static int waitFor(Process process, String command) throws InterruptedException {
+        ShellEvents.Wait event = new ShellEvents.Wait();
+        event.begin();
+        int exitStatus = process.waitFor();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.exitStatus = exitStatus;
+            event.commit();
+        }
+        return exitStatus;
+    }
+    
+    /**
+     * Copy a process's stdout into the given stream, killing the process if the stream fails
+     * (for example when a substitution buffer overflows)
+     */
+    private void captureOutput(Process process, OutputStream stdout) throws IOException {
+        try (InputStream in = process.getInputStream()) {
+            ShellEvents.Pump event = new ShellEvents.Pump();
+            event.begin();
+            event.bytes = in.transferTo(stdout);
+            if (event.shouldCommit()) {
+                event.name = process.info().command().orElse("process") + " >capture";
+                event.commit();
+            }
+        } catch (IOException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+    }
+    
+    /**
+     * Write output to terminal, stdout stream or file based on redirection
+     */
+    private void writeOutput(String output, RedirectionInfo redir, Terminal terminal, Path currentDirectory,
+                             OutputStream stdout) throws IOException {
+        if (redir.hasStdoutRedirection()) {
+            List<String> files = redir.getStdoutFiles();
+            List<RedirectionMode> modes = redir.getStdoutModes();
+            for (int i = 0; i < files.size(); i++) {
+                Path outputFile = currentDirectory.resolve(files.get(i)).normalize();
+                if (modes.get(i) == RedirectionMode.APPEND) {
+                    Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } else {
+                    Files.writeString(outputFile, output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+            }
+        } else if (stdout != null) {
+            stdout.write(output.getBytes(StandardCharsets.UTF_8));
+        } else if (terminal != null) {
             terminal.writer().print(output);
             terminal.writer().flush();
+        } else {
+            standardOut.write(output.getBytes(StandardCharsets.UTF_8));
         }
     }
 }
@@ -9,8 +9,43 @@ public class CommandParser {
     /**
      * Parse a command line into a ParsedCommand object
      * Handles quotes, redirection, and pipes
+     * Command substitutions are kept as literal text
      */
     public static ParsedCommand parse(String line) {
+        return parse(line, null);
+    }
+    
+    /**
+     * Parse a command line, evaluating $(...) and `...` through the given callback
+     */
+    public static ParsedCommand parse(String line, CommandSubstitution substitution) {
+        ShellEvents.Parse event = new ShellEvents.Parse();
+        event.begin();
+        ParsedCommand result = parseLine(line, substitution);
+        commit(event, result, line);
+        return result;
+    }
+    
+    private static void commit(ShellEvents.Parse event, ParsedCommand result, String line) {
+        if (event.shouldCommit()) {
+            event.command = result.getCommand();
+            event.argc = result.getArgs().size();
+            event.stages = result.isPiped() ? result.getPipeline().size() : 1;
+            event.length = line != null ? line.length() : 0;
+            event.commit();
+        }
+    }
+    
+    private static void commit(ShellEvents.ParseStage event, ParsedCommand stage, String text) {
+        if (event.shouldCommit()) {
+            event.command = stage.getCommand();
+            event.argc = stage.getArgs().size();
+            event.length = text.length();
+            event.commit();
+        }
+    }
+    
+    private static ParsedCommand parseLine(String line, CommandSubstitution substitution) {
         ParsedCommand result = new ParsedCommand();
         
         if (line == null || line.trim().isEmpty()) {
@@ -19,12 +54,33 @@ public class CommandParser {
         
         line = line.trim();
         
+        // Structured pipes (|>) bind loosest, each stage is an ordinary command
+        if (line.contains("|>")) {
+            String[] stages = splitPipes(line, true);
+            if (stages.length > 1) {
+                List<ParsedCommand> pipeline = new ArrayList<>();
+                for (String stage : stages) {
+                    ShellEvents.ParseStage event = new ShellEvents.ParseStage();
+                    event.begin();
+                    ParsedCommand parsed = parseLine(stage, substitution);
+                    commit(event, parsed, stage);
+                    pipeline.add(parsed);
+                }
+                result.setPiped(true);
+                result.setStructured(true);
+                result.setPipeline(pipeline);
+                return result;
+            }
+        }
+        
         // Check for pipes first
         if (line.contains("|")) {
-            String[] pipeParts = splitPipes(line);
-            result.setPiped(true);
-            result.setPipeline(parsePipeline(pipeParts));
-            return result;
+            String[] pipeParts = splitPipes(line, false);
+            if (pipeParts.length > 1) {
+                result.setPiped(true);
+                result.setPipeline(parsePipeline(pipeParts, substitution));
+                return result;
+            }
         }
         
         // Parse redirections
@@ -35,7 +91,7 @@ public class CommandParser {
         String commandPart = removeRedirections(line);
         
         // Tokenize command
-        List<String> tokens = tokenize(commandPart);
+        List<String> tokens = tokenize(commandPart, substitution);
         
         if (tokens.isEmpty()) {
             return result;
@@ -48,18 +104,14 @@ public class CommandParser {
     }
     
     /**
-     * Tokenize command line handling quotes and escaping
+     * Tokenize command line handling quotes, escaping and command substitution
+     * State is kept local so substitutions can re-enter the parser
      */
-    private static List<String> tokens = new ArrayList<>();
-    private static StringBuilder currentToken = new StringBuilder();
-    private static boolean inSingleQuotes = false;
-    private static boolean inDoubleQuotes = false;
-    
-    private static List<String> tokenize(String line) {
-        tokens.clear();
-        currentToken.setLength(0);
-        inSingleQuotes = false;
-        inDoubleQuotes = false;
+    private static List<String> tokenize(String line, CommandSubstitution substitution) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder currentToken = new StringBuilder();
+        boolean inSingleQuotes = false;
+        boolean inDoubleQuotes = false;
         
         char[] chars = line.toCharArray();
         int i = 0;
@@ -88,6 +140,61 @@ public class CommandParser {
                     currentToken.append(c);
                     i++;
                 }
+            } else if ((c == '`' || (c == '$' && i + 1 < chars.length && chars[i + 1] == '('))
+                    && !inSingleQuotes && findSubstitutionEnd(chars, i) > 0) {
+                // Command substitution
+                int end = findSubstitutionEnd(chars, i);
+                int start = c == '`' ? i + 1 : i + 2;
+                String inner = new String(chars, start, end - start);
+                
+                if (substitution == null) {
+                    currentToken.append(chars, i, end - i + 1);
+                } else if (inDoubleQuotes) {
+                    currentToken.append(substitution.substitute(inner));
+                } else {
+                    // Unquoted output is split into words
+                    String output = substitution.substitute(inner);
+                    for (int j = 0; j < output.length(); j++) {
+                        char o = output.charAt(j);
+                        if (o == ' ' || o == '\t' || o == '\n') {
+                            if (currentToken.length() > 0) {
+                                tokens.add(currentToken.toString());
+                                currentToken.setLength(0);
+                            }
+                        } else {
+                            currentToken.append(o);
+                        }
+                    }
+                }
+                i = end + 1;
+            } else if (c == '$' && !inSingleQuotes && substitution != null && i + 1 < chars.length
+                    && (chars[i + 1] == '?' || chars[i + 1] == '{' || Character.isLetter(chars[i + 1]))) {
+                // Parameter expansion: $?, $NAME or ${NAME}
+                int end;
+                String name;
+                if (chars[i + 1] == '?') {
+                    name = "?";
+                    end = i + 2;
+                } else if (chars[i + 1] == '{') {
+                    int close = line.indexOf('}', i + 2);
+                    name = close > 0 ? line.substring(i + 2, close) : null;
+                    end = close + 1;
+                } else {
+                    end = i + 1;
+                    while (end < chars.length && (Character.isLetterOrDigit(chars[end]) || chars[end] == '_')) {
+                        end++;
+                    }
+                    name = line.substring(i + 1, end);
+                }
+                
+                String value = name != null ? substitution.variable(name) : null;
+                if (value != null) {
+                    currentToken.append(value);
+                    i = end;
+                } else {
+                    currentToken.append(c);
+                    i++;
+                }
             } else if (c == '\'' && !inDoubleQuotes) {
                 // Single quote
                 inSingleQuotes = !inSingleQuotes;
@@ -114,7 +221,59 @@ public class CommandParser {
             tokens.add(currentToken.toString());
         }
         
-        return new ArrayList<>(tokens);
+        return tokens;
+    }
+    
+    /**
+     * Find the closing ) or ` of a substitution starting at index start
+     * Returns -1 when the substitution is unterminated
+     */
+    private static int findSubstitutionEnd(char[] chars, int start) {
+        if (chars[start] == '`') {
+            for (int i = start + 1; i < chars.length; i++) {
+                if (chars[i] == '\\') {
+                    i++;
+                } else if (chars[i] == '`') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        int depth = 0;
+        char quoteChar = 0;
+        for (int i = start + 1; i < chars.length; i++) {
+            char c = chars[i];
+            if (c == '\\' && quoteChar != '\'') {
+                i++;
+            } else if (quoteChar != 0) {
+                if (c == quoteChar) {
+                    quoteChar = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quoteChar = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Return the index of the last character of a substitution starting at i,
+     * or i itself when there is none, so operator scanners can skip over it
+     */
+    private static int skipSubstitution(char[] chars, int i) {
+        char c = chars[i];
+        if (c == '`' || (c == '$' && i + 1 < chars.length && chars[i + 1] == '(')) {
+            int end = findSubstitutionEnd(chars, i);
+            if (end > 0) {
+                return end;
+            }
+        }
+        return i;
     }
     
     /**
@@ -128,12 +287,11 @@ public class CommandParser {
             String token = tokens.get(i);
             
             if (token.equals(">") && i + 1 < tokens.size()) {
-                info.setStdoutFile(tokens.get(i + 1));
-                info.setStdoutMode(RedirectionMode.OVERWRITE);
+                // Repeated > or >> fan out to every file (zsh-style multios)
+                info.addStdoutFile(tokens.get(i + 1), RedirectionMode.OVERWRITE);
                 i++;
             } else if (token.equals(">>") && i + 1 < tokens.size()) {
-                info.setStdoutFile(tokens.get(i + 1));
-                info.setStdoutMode(RedirectionMode.APPEND);
+                info.addStdoutFile(tokens.get(i + 1), RedirectionMode.APPEND);
                 i++;
             } else if (token.equals("<") && i + 1 < tokens.size()) {
                 info.setStdinFile(tokens.get(i + 1));
@@ -179,6 +337,11 @@ public class CommandParser {
                 }
                 currentToken.append(c);
                 i++;
+            } else if ((!inQuotes || quoteChar == '"') && skipSubstitution(chars, i) > i) {
+                // Keep substitutions intact, operators inside belong to them
+                int end = skipSubstitution(chars, i);
+                currentToken.append(chars, i, end - i + 1);
+                i = end + 1;
             } else if (!inQuotes && (c == '>' || c == '<')) {
                 // Check for >> or >>
                 if (currentToken.length() > 0) {
@@ -245,6 +408,10 @@ public class CommandParser {
                 inQuotes = !inQuotes;
                 quoteChar = c;
                 result.append(c);
+            } else if ((!inQuotes || quoteChar == '"') && skipSubstitution(chars, i) > i) {
+                int end = skipSubstitution(chars, i);
+                result.append(chars, i, end - i + 1);
+                i = end;
             } else if (!inQuotes && (c == '>' || c == '<')) {
                 // Skip redirection operators and their arguments
                 if (i + 1 < chars.length && chars[i + 1] == '>') {
@@ -273,17 +440,23 @@ public class CommandParser {
     
     /**
      * Split line by pipes, preserving quoted content
+     * With structured set, only |> separates parts and plain | is kept
      */
-    private static String[] splitPipes(String line) {
+    private static String[] splitPipes(String line, boolean structured) {
         List<String> parts = new ArrayList<>();
         StringBuilder current = new StringBuilder();
         boolean inQuotes = false;
         char quoteChar = 0;
+        char[] chars = line.toCharArray();
         
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
             
-            if ((c == '"' || c == '\'') && (i == 0 || line.charAt(i-1) != '\\')) {
+            if ((!inQuotes || quoteChar == '"') && skipSubstitution(chars, i) > i) {
+                int end = skipSubstitution(chars, i);
+                current.append(chars, i, end - i + 1);
+                i = end;
+            } else if ((c == '"' || c == '\'') && (i == 0 || chars[i-1] != '\\')) {
                 if (!inQuotes) {
                     inQuotes = true;
                     quoteChar = c;
@@ -292,9 +465,12 @@ public class CommandParser {
                     quoteChar = 0;
                 }
                 current.append(c);
-            } else if (c == '|' && !inQuotes) {
+            } else if (c == '|' && !inQuotes && structured == (i + 1 < chars.length && chars[i + 1] == '>')) {
                 parts.add(current.toString().trim());
                 current.setLength(0);
+                if (structured) {
+                    i++;
+                }
             } else {
                 current.append(c);
             }
@@ -310,11 +486,13 @@ public class CommandParser {
     /**
      * Parse pipeline commands
      */
-    private static List<ParsedCommand> parsePipeline(String[] parts) {
+    private static List<ParsedCommand> parsePipeline(String[] parts, CommandSubstitution substitution) {
         List<ParsedCommand> pipeline = new ArrayList<>();
         
         for (int i = 0; i < parts.length; i++) {
             String part = parts[i].trim();
+            ShellEvents.ParseStage event = new ShellEvents.ParseStage();
+            event.begin();
             ParsedCommand cmd = new ParsedCommand();
             
             // Parse redirections only for first/last commands
@@ -322,12 +500,13 @@ public class CommandParser {
             cmd.setRedirection(redir);
             
             String commandPart = i == 0 || i == parts.length - 1 ? removeRedirections(part) : part;
-            List<String> tokens = tokenize(commandPart);
+            List<String> tokens = tokenize(commandPart, substitution);
             
             if (!tokens.isEmpty()) {
                 cmd.setCommand(tokens.get(0));
                 cmd.setArgs(tokens.subList(1, tokens.size()));
             }
+            commit(event, cmd, part);
             
             pipeline.add(cmd);
         }
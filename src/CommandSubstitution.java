@@ -0,0 +1,20 @@
+/**
+ * Callback used by the parser to evaluate $(...) and `...` substitutions
+ * and special parameters such as $?
+ */
+@FunctionalInterface
+public interface CommandSubstitution {
+
+    /**
+     * Run the given command line and return its standard output
+     * with trailing newlines removed
+     */
+    String substitute(String commandLine);
+
+    /**
+     * Value of a shell parameter such as "?" or "PIPESTATUS[1]", or null to leave it unexpanded
+     */
+    default String variable(String name) {
+        return null;
+    }
+}
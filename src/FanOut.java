@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a stream once and writes it to several sinks, as used by tee and multiple
+ * output redirections.
+ *
+ * Every sink has its own writer thread and queue, and all sinks share the same pooled
+ * buffers; a buffer returns to the pool once the last sink has written it. The reader
+ * only waits for a sink whose backlog has reached maxLagBytes, counting the capacity of
+ * the buffers it pins, so a slow sink holds the others back by at most that much. Small
+ * reads are appended to the last buffer while no sink has started writing it. Sinks
+ * that fail (for example a downstream process that exited) are dropped while the rest
+ * keep going; a command substitution buffer that overflows stops the whole fan-out
+ * instead and is reported by join().
+ */
+public class FanOut {
+    private final String name;
+    private final ReadableByteChannel source;
+    private final BufferPool pool;
+    private final long maxLagBytes;
+    private final List<Sink> sinks = new ArrayList<>();
+
+    private Thread reader;
+    private volatile IOException error;
+
+    public FanOut(String name, ReadableByteChannel source, List<WritableByteChannel> channels,
+                  BufferPool pool, long maxLagBytes) {
+        this.name = name;
+        this.source = source;
+        this.pool = pool;
+        this.maxLagBytes = maxLagBytes;
+        for (WritableByteChannel channel : channels) {
+            sinks.add(new Sink(channel));
+        }
+    }
+
+    public void start() {
+        for (int i = 0; i < sinks.size(); i++) {
+            Sink sink = sinks.get(i);
+            sink.thread = new Thread(sink::writeLoop, "fanout-write " + name + " #" + i);
+            sink.thread.setDaemon(true);
+            sink.thread.start();
+        }
+        reader = new Thread(this::readLoop, "fanout-read " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Wait for every sink to finish; throws if a substitution buffer overflowed
+     */
+    public void join() throws InterruptedException, IOException {
+        reader.join();
+        for (Sink sink : sinks) {
+            sink.thread.join();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void readLoop() {
+        ShellEvents.Pump event = new ShellEvents.Pump();
+        event.begin();
+        long bytes = 0;
+        ByteBuffer buffer = null;
+        Shared last = null;
+        try {
+            while (error == null) {
+                if (buffer == null) {
+                    buffer = pool.acquire();
+                } else {
+                    buffer.clear();
+                }
+                int read = source.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+
+                if (last != null && last.append(buffer, read)) {
+                    bytes += read;
+                    continue;
+                }
+
+                List<Sink> active = new ArrayList<>(sinks.size());
+                for (Sink sink : sinks) {
+                    if (sink.awaitCapacity()) {
+                        active.add(sink);
+                    }
+                }
+                if (active.isEmpty()) {
+                    break;
+                }
+
+                bytes += read;
+                last = new Shared(buffer, active.size());
+                buffer = null;
+                for (Sink sink : active) {
+                    sink.enqueue(last);
+                }
+            }
+        } catch (IOException e) {
+            // Upstream closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (buffer != null) {
+                pool.release(buffer);
+            }
+            closeQuietly(source);
+            for (Sink sink : sinks) {
+                sink.finish();
+            }
+            if (event.shouldCommit()) {
+                event.name = name;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * A pooled buffer referenced by every sink it was queued on
+     */
+    private class Shared {
+        final ByteBuffer buffer;
+        int references;
+        // Set once any sink takes or drops it; from then on its contents are fixed
+        boolean taken;
+
+        Shared(ByteBuffer buffer, int references) {
+            this.buffer = buffer;
+            this.references = references;
+        }
+
+        /**
+         * Append length bytes of src if no sink has started on this buffer and they fit
+         */
+        synchronized boolean append(ByteBuffer src, int length) {
+            if (taken || buffer.capacity() - buffer.limit() < length) {
+                return false;
+            }
+            int end = buffer.limit();
+            buffer.limit(end + length);
+            buffer.put(end, src, 0, length);
+            return true;
+        }
+
+        /**
+         * A sink's own view of the contents
+         */
+        synchronized ByteBuffer take() {
+            taken = true;
+            return buffer.duplicate();
+        }
+
+        synchronized void release() {
+            taken = true;
+            if (--references == 0) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    private class Sink {
+        final WritableByteChannel channel;
+        final ArrayDeque<Shared> queue = new ArrayDeque<>();
+        long queuedBytes;
+        boolean sourceDone;
+        boolean failed;
+        Thread thread;
+
+        Sink(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Wait until this sink is within the lag bound; false if it has failed
+         */
+        synchronized boolean awaitCapacity() throws InterruptedException {
+            while (queuedBytes >= maxLagBytes && !failed) {
+                wait();
+            }
+            return !failed;
+        }
+
+        synchronized void enqueue(Shared shared) {
+            if (failed) {
+                shared.release();
+                return;
+            }
+            queue.add(shared);
+            queuedBytes += shared.buffer.capacity();
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            sourceDone = true;
+            notifyAll();
+        }
+
+        void writeLoop() {
+            try {
+                while (true) {
+                    Shared shared;
+                    synchronized (this) {
+                        while (queue.isEmpty() && !sourceDone) {
+                            wait();
+                        }
+                        if (queue.isEmpty()) {
+                            break;
+                        }
+                        shared = queue.poll();
+                    }
+
+                    // Each sink reads through its own view of the shared buffer
+                    ByteBuffer view = shared.take();
+                    try {
+                        while (view.hasRemaining()) {
+                            channel.write(view);
+                        }
+                    } finally {
+                        shared.release();
+                    }
+
+                    synchronized (this) {
+                        queuedBytes -= shared.buffer.capacity();
+                        notifyAll();
+                    }
+                }
+            } catch (CaptureBuffer.OverflowException e) {
+                // Not a sink going away: stop reading so upstream sees a broken pipe
+                error = e;
+                closeQuietly(source);
+            } catch (IOException e) {
+                // Sink went away; the others keep going
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeQuietly(channel);
+                synchronized (this) {
+                    failed = true;
+                    while (!queue.isEmpty()) {
+                        queue.poll().release();
+                    }
+                    queuedBytes = 0;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
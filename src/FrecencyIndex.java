@@ -0,0 +1,555 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Directories ranked by frecency (visit count weighted by recency) for the z/j built-ins.
+ *
+ * The index lives in one file that is memory-mapped read-only:
+ *
+ *   header   magic, version, entry count, reserved (4 ints)
+ *   entries  pathOffset, pathLength, baseStart (ints), score (float), lastVisit (long)
+ *   pool     UTF-8 bytes of every path
+ *
+ * Entries are sorted by lower-cased last path component, then by full path, so
+ * "z proj" finds every directory whose name starts with "proj" with one binary search.
+ * Visits since the last save wait in a small in-memory overlay as score increments.
+ * Saving takes a lock on a sibling .lock file, re-reads the file so visits saved by
+ * other shells in the meantime are kept, adds the overlay and atomically replaces the
+ * file, aging scores once their total grows too large. A file that does not look like
+ * an index is treated as empty and replaced on the next save.
+ */
+public class FrecencyIndex {
+    private static final int MAGIC = 0x4a534446;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 24;
+    private static final int MAX_OVERLAY = 64;
+    private static final double MAX_TOTAL_SCORE = 100_000;
+
+    private static final long HOUR = 3600_000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long WEEK = 7 * DAY;
+
+    private static FrecencyIndex shared;
+
+    private final Path file;
+    private ByteBuffer map;
+    private int count;
+    private int poolStart;
+    private double totalScore;
+    private Object loadedKey;
+    private final Map<String, Entry> overlay = new HashMap<>();
+
+    private static class Entry {
+        final byte[] path;
+        final int baseStart;
+        float score;
+        long lastVisit;
+        // Overlay only: drop the saved score and keep just this entry's
+        boolean removed;
+
+        Entry(byte[] path, float score, long lastVisit) {
+            this.path = path;
+            this.baseStart = baseStart(path);
+            this.score = score;
+            this.lastVisit = lastVisit;
+        }
+    }
+
+    /**
+     * The index used by every session of this JVM, saved on exit.
+     * Location comes from -Djavashell.jump.file, default ~/.javashell_dirs
+     */
+    public static synchronized FrecencyIndex shared() throws IOException {
+        if (shared == null) {
+            String location = System.getProperty("javashell.jump.file",
+                    Paths.get(System.getProperty("user.home"), ".javashell_dirs").toString());
+            FrecencyIndex index = new FrecencyIndex(Paths.get(location));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    index.save();
+                } catch (IOException e) {
+                    // Nothing left to report to
+                }
+            }));
+            shared = index;
+        }
+        return shared;
+    }
+
+    public FrecencyIndex(Path file) throws IOException {
+        this.file = file;
+        load();
+    }
+
+    public synchronized int size() {
+        int size = count;
+        for (Entry entry : overlay.values()) {
+            if (find(entry.path) < 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Count one visit to dir
+     */
+    public synchronized void recordVisit(Path dir) throws IOException {
+        long now = System.currentTimeMillis();
+        String name = dir.toString();
+        Entry visit = overlay.computeIfAbsent(name,
+                key -> new Entry(key.getBytes(StandardCharsets.UTF_8), 0, now));
+        visit.score++;
+        visit.lastVisit = now;
+        totalScore++;
+
+        if (overlay.size() >= MAX_OVERLAY || totalScore > MAX_TOTAL_SCORE) {
+            save();
+        }
+    }
+
+    /**
+     * Forget dir, e.g. because it no longer exists
+     */
+    public synchronized void remove(Path dir) {
+        String name = dir.toString();
+        Entry removal = overlay.computeIfAbsent(name,
+                key -> new Entry(key.getBytes(StandardCharsets.UTF_8), 0, 0));
+        removal.score = 0;
+        removal.removed = true;
+    }
+
+    /**
+     * Highest ranked directory matching the keywords, other than exclude.
+     * Keywords must appear in the path in order, case-insensitively, and the last one
+     * in its last component. Names starting with the last keyword are preferred and
+     * found by binary search; other matches need a scan of the index.
+     */
+    public synchronized Path best(List<String> keywords, Path exclude) {
+        refresh();
+        List<Match> matches = search(keywords, exclude, true);
+        if (matches.isEmpty()) {
+            matches = search(keywords, exclude, false);
+        }
+        Match best = null;
+        for (Match match : matches) {
+            if (best == null || match.rank > best.rank) {
+                best = match;
+            }
+        }
+        return best != null ? Paths.get(best.path) : null;
+    }
+
+    /**
+     * Matching directories with their frecency, best first
+     */
+    public synchronized List<String> list(List<String> keywords, int limit) {
+        refresh();
+        List<Match> matches = search(keywords, null, false);
+        matches.sort(Comparator.comparingDouble((Match match) -> match.rank).reversed());
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, matches.size()); i++) {
+            lines.add(String.format("%10.1f  %s", matches.get(i).rank, matches.get(i).path));
+        }
+        return lines;
+    }
+
+    private static class Match {
+        final String path;
+        final double rank;
+
+        Match(String path, double rank) {
+            this.path = path;
+            this.rank = rank;
+        }
+    }
+
+    private List<Match> search(List<String> keywords, Path exclude, boolean prefixOnly) {
+        long now = System.currentTimeMillis();
+        byte[][] needles = new byte[keywords.size()][];
+        for (int i = 0; i < needles.length; i++) {
+            needles[i] = keywords.get(i).toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] last = needles.length > 0 ? needles[needles.length - 1] : new byte[0];
+        String excluded = exclude != null ? exclude.toString() : null;
+
+        List<Match> matches = new ArrayList<>();
+        int from = 0;
+        int to = count;
+        if (prefixOnly) {
+            from = lowerBound(last, null);
+        }
+        for (int i = from; i < to; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            int offset = poolStart + map.getInt(entry);
+            int length = map.getInt(entry + 4);
+            int baseStart = map.getInt(entry + 8);
+            if (prefixOnly && !startsWithIgnoreCase(map, offset + baseStart, offset + length, last)) {
+                break;
+            }
+            if (matches(map, offset, length, baseStart, needles, prefixOnly)) {
+                String path = decode(map, offset, length);
+                float score = map.getFloat(entry + 12);
+                long lastVisit = map.getLong(entry + 16);
+                Entry pending = overlay.get(path);
+                if (pending != null) {
+                    score = pending.removed ? pending.score : score + pending.score;
+                    lastVisit = Math.max(lastVisit, pending.lastVisit);
+                }
+                if (score > 0 && !path.equals(excluded)) {
+                    matches.add(new Match(path, frecency(score, lastVisit, now)));
+                }
+            }
+        }
+        for (Entry entry : overlay.values()) {
+            // Saved directories were ranked above with their pending visits added
+            if (entry.score <= 0 || find(entry.path) >= 0) {
+                continue;
+            }
+            ByteBuffer path = ByteBuffer.wrap(entry.path);
+            boolean candidate = !prefixOnly
+                    || startsWithIgnoreCase(path, entry.baseStart, entry.path.length, last);
+            if (candidate && matches(path, 0, entry.path.length, entry.baseStart, needles, prefixOnly)) {
+                String name = new String(entry.path, StandardCharsets.UTF_8);
+                if (!name.equals(excluded)) {
+                    matches.add(new Match(name, frecency(entry.score, entry.lastVisit, now)));
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Keywords in order; the last one inside the last component, or at its start
+     */
+    private static boolean matches(ByteBuffer buf, int offset, int length, int baseStart, byte[][] needles,
+                                   boolean prefixOnly) {
+        int end = offset + length;
+        int position = offset;
+        for (int i = 0; i < needles.length - 1; i++) {
+            int found = indexOfIgnoreCase(buf, position, end, needles[i]);
+            if (found < 0) {
+                return false;
+            }
+            position = found + needles[i].length;
+        }
+        if (needles.length == 0) {
+            return true;
+        }
+        byte[] last = needles[needles.length - 1];
+        int base = offset + baseStart;
+        if (prefixOnly) {
+            return position <= base && startsWithIgnoreCase(buf, base, end, last);
+        }
+        return indexOfIgnoreCase(buf, Math.max(position, base), end, last) >= 0;
+    }
+
+    private static double frecency(float score, long lastVisit, long now) {
+        long age = now - lastVisit;
+        if (age < HOUR) {
+            return score * 4.0;
+        } else if (age < DAY) {
+            return score * 2.0;
+        } else if (age < WEEK) {
+            return score / 2.0;
+        }
+        return score / 4.0;
+    }
+
+    /**
+     * Index of the entry for path in the mapped array, or -1
+     */
+    private int find(byte[] path) {
+        int baseStart = baseStart(path);
+        int index = lowerBound(path, baseStart, path.length, path);
+        if (index < count) {
+            int entry = HEADER_SIZE + index * ENTRY_SIZE;
+            int offset = poolStart + map.getInt(entry);
+            int length = map.getInt(entry + 4);
+            if (length == path.length && map.slice(offset, length).equals(ByteBuffer.wrap(path))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * First entry whose lower-cased name is not less than the given prefix
+     */
+    private int lowerBound(byte[] lowerName, byte[] path) {
+        return lowerBound(lowerName, 0, lowerName.length, path);
+    }
+
+    /**
+     * First entry not less than the key (name bytes [from, to) of key, then path)
+     */
+    private int lowerBound(byte[] key, int from, int to, byte[] path) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int entry = HEADER_SIZE + mid * ENTRY_SIZE;
+            int offset = poolStart + map.getInt(entry);
+            int length = map.getInt(entry + 4);
+            int baseStart = map.getInt(entry + 8);
+            int c = compareNames(map, offset + baseStart, offset + length, key, from, to);
+            if (c == 0 && path != null) {
+                c = compareBytes(map, offset, offset + length, path);
+            }
+            if (c < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Map the file as it is on disk now; the overlay is kept, since it only holds
+     * increments on top of whatever was saved
+     */
+    private synchronized void load() throws IOException {
+        map = ByteBuffer.allocate(HEADER_SIZE);
+        count = 0;
+        poolStart = HEADER_SIZE;
+        totalScore = 0;
+        loadedKey = null;
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            loadedKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!isValid(mapped)) {
+                return;
+            }
+            map = mapped;
+            count = mapped.getInt(8);
+            poolStart = HEADER_SIZE + count * ENTRY_SIZE;
+        }
+        for (int i = 0; i < count; i++) {
+            totalScore += map.getFloat(HEADER_SIZE + i * ENTRY_SIZE + 12);
+        }
+        for (Entry entry : overlay.values()) {
+            totalScore += entry.score;
+        }
+    }
+
+    /**
+     * Header and every entry within bounds, so a truncated or foreign file can't make
+     * lookups fail
+     */
+    private static boolean isValid(ByteBuffer buf) {
+        int size = buf.capacity();
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            return false;
+        }
+        int entries = buf.getInt(8);
+        if (entries < 0 || entries > (size - HEADER_SIZE) / ENTRY_SIZE) {
+            return false;
+        }
+        long poolSize = size - HEADER_SIZE - (long) entries * ENTRY_SIZE;
+        for (int i = 0; i < entries; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            int offset = buf.getInt(entry);
+            int length = buf.getInt(entry + 4);
+            int baseStart = buf.getInt(entry + 8);
+            if (offset < 0 || length < 0 || (long) offset + length > poolSize
+                    || baseStart < 0 || baseStart > length || !Float.isFinite(buf.getFloat(entry + 12))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pick up a file another shell saved since we last loaded it
+     */
+    private void refresh() {
+        try {
+            Object key = Files.exists(file) ? Files.readAttributes(file, BasicFileAttributes.class).fileKey() : null;
+            if (key == null || !Objects.equals(key, loadedKey)) {
+                load();
+            }
+        } catch (IOException e) {
+            // Keep ranking with what we have
+        }
+    }
+
+    /**
+     * Merge the overlay into the file as it is on disk, aging scores if they grew too
+     * large. Holds a lock on the .lock file so concurrent shells don't lose each
+     * other's visits
+     */
+    public synchronized void save() throws IOException {
+        if (overlay.isEmpty() && totalScore <= MAX_TOTAL_SCORE) {
+            return;
+        }
+
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        // Closing the channel releases the lock
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            lockChannel.lock();
+            load();
+            write(parent, merge());
+        }
+        overlay.clear();
+        load();
+    }
+
+    /**
+     * Saved entries with the overlay added, aged and sorted for writing
+     */
+    private List<Entry> merge() {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int entry = HEADER_SIZE + i * ENTRY_SIZE;
+            int offset = poolStart + map.getInt(entry);
+            byte[] path = new byte[map.getInt(entry + 4)];
+            map.get(offset, path);
+            entries.add(new Entry(path, map.getFloat(entry + 12), map.getLong(entry + 16)));
+        }
+        for (Entry pending : overlay.values()) {
+            int index = find(pending.path);
+            if (index < 0) {
+                entries.add(pending);
+                continue;
+            }
+            Entry saved = entries.get(index);
+            saved.score = pending.removed ? pending.score : saved.score + pending.score;
+            saved.lastVisit = Math.max(saved.lastVisit, pending.lastVisit);
+        }
+        double total = 0;
+        for (Entry entry : entries) {
+            total += entry.score;
+        }
+        if (total > MAX_TOTAL_SCORE) {
+            // Scale everything down to 90% of the cap; directories visited once long ago drop out
+            float factor = (float) (0.9 * MAX_TOTAL_SCORE / total);
+            for (Entry entry : entries) {
+                entry.score *= factor;
+            }
+            entries.removeIf(entry -> entry.score < 1);
+        } else {
+            entries.removeIf(entry -> entry.score <= 0);
+        }
+        entries.sort((a, b) -> {
+            int c = compareNames(ByteBuffer.wrap(a.path), a.baseStart, a.path.length, b.path, b.baseStart, b.path.length);
+            return c != 0 ? c : compareBytes(ByteBuffer.wrap(a.path), 0, a.path.length, b.path);
+        });
+        return entries;
+    }
+
+    private void write(Path parent, List<Entry> entries) throws IOException {
+        int poolSize = 0;
+        for (Entry entry : entries) {
+            poolSize += entry.path.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + entries.size() * ENTRY_SIZE + poolSize);
+        out.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(0);
+        int offset = 0;
+        for (Entry entry : entries) {
+            out.putInt(offset).putInt(entry.path.length).putInt(entry.baseStart)
+                    .putFloat(entry.score).putLong(entry.lastVisit);
+            offset += entry.path.length;
+        }
+        for (Entry entry : entries) {
+            out.put(entry.path);
+        }
+        out.flip();
+
+        Path temp = Files.createTempFile(parent, ".javashell_dirs", ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int baseStart(byte[] path) {
+        for (int i = path.length - 2; i >= 0; i--) {
+            if (path[i] == '/') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    private static int compareNames(ByteBuffer buf, int from, int to, byte[] key, int keyFrom, int keyTo) {
+        int length = Math.min(to - from, keyTo - keyFrom);
+        for (int i = 0; i < length; i++) {
+            int c = Byte.toUnsignedInt(lower(buf.get(from + i))) - Byte.toUnsignedInt(lower(key[keyFrom + i]));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (to - from) - (keyTo - keyFrom);
+    }
+
+    private static int compareBytes(ByteBuffer buf, int from, int to, byte[] key) {
+        int length = Math.min(to - from, key.length);
+        for (int i = 0; i < length; i++) {
+            int c = Byte.toUnsignedInt(buf.get(from + i)) - Byte.toUnsignedInt(key[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return (to - from) - key.length;
+    }
+
+    private static boolean startsWithIgnoreCase(ByteBuffer buf, int from, int to, byte[] lowerPrefix) {
+        if (to - from < lowerPrefix.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerPrefix.length; i++) {
+            if (lower(buf.get(from + i)) != lowerPrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfIgnoreCase(ByteBuffer buf, int from, int to, byte[] lowerNeedle) {
+        for (int i = from; i + lowerNeedle.length <= to; i++) {
+            if (startsWithIgnoreCase(buf, i, to, lowerNeedle)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decode(ByteBuffer buf, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity command history that any number of threads can append to without locks.
+ *
+ * A writer claims a sequence number with one atomic increment and publishes its entry
+ * into slot sequence % capacity; once more than capacity entries have been added the
+ * oldest are overwritten. Readers iterate over a snapshot taken when the iterator is
+ * created and skip slots that were overwritten or not published yet. An optional
+ * background flusher appends new entries to a file in batches, so writers never wait
+ * on disk either. The file is read back by load() and trimmed there, so it holds the
+ * history of earlier sessions without growing forever; shells sharing it serialize
+ * their appends and trims on a sibling .lock file.
+ */
+public class HistoryRing implements Iterable<HistoryRing.Entry>, Closeable {
+    private final AtomicReferenceArray<Entry> slots;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    private Thread flusher;
+    private boolean flushing;
+    private Path flushFile;
+    private long flushed;
+    private long dropped;
+
+    private interface FileAction {
+        void run() throws IOException;
+    }
+
+    public static final class Entry {
+        private final long sequence;
+        private final long timeMillis;
+        private final String line;
+
+        Entry(long sequence, long timeMillis, String line) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.line = line;
+        }
+
+        /**
+         * Position in the history, starting at 0
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public String getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * Capacity is rounded up to a power of two
+     */
+    public HistoryRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.capacity = size;
+        this.mask = size - 1;
+    }
+
+    /**
+     * Append a line; safe from any thread. Returns its sequence number
+     */
+    public long add(String line) {
+        long sequence = next.getAndIncrement();
+        slots.setRelease((int) (sequence & mask), new Entry(sequence, System.currentTimeMillis(), line));
+        return sequence;
+    }
+
+    /**
+     * Number of lines ever added, including overwritten ones
+     */
+    public long size() {
+        return next.get();
+    }
+
+    public boolean isEmpty() {
+        return next.get() == 0;
+    }
+
+    /**
+     * The entries still in the ring, oldest first, as of this call
+     */
+    @Override
+    public Iterator<Entry> iterator() {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+        return new Iterator<>() {
+            private long position = start;
+            private Entry pending;
+
+            @Override
+            public boolean hasNext() {
+                while (pending == null && position < end) {
+                    Entry entry = slots.getAcquire((int) (position & mask));
+                    if (entry != null && entry.sequence == position) {
+                        pending = entry;
+                    }
+                    position++;
+                }
+                return pending != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry entry = pending;
+                pending = null;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Add the last capacity lines of file, if there is one, as the oldest entries. A file
+     * holding more than twice that many lines is rewritten with just those. Call before
+     * anything else is added
+     */
+    public synchronized void load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        ArrayDeque<String> lines = new ArrayDeque<>(capacity);
+        withLock(file, () -> {
+            long total = 0;
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (lines.size() == capacity) {
+                        lines.poll();
+                    }
+                    lines.add(line);
+                    total++;
+                }
+            }
+            if (total > 2L * capacity) {
+                Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), ".javashell_history", ".tmp");
+                Files.write(temp, lines, StandardCharsets.UTF_8);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        });
+        for (String line : lines) {
+            add(line);
+        }
+    }
+
+    /**
+     * Append new entries to file every intervalMillis on a daemon thread.
+     * Fails right away if file can't be written
+     */
+    public synchronized void startFlusher(Path file, long intervalMillis) throws IOException {
+        if (flusher != null) {
+            return;
+        }
+        withLock(file, () -> append(file, ByteBuffer.allocate(0)));
+        flushFile = file;
+        flushed = next.get();
+        flushing = true;
+        // Waits on the monitor rather than sleeping, so close() never interrupts a write
+        flusher = new Thread(() -> {
+            synchronized (this) {
+                try {
+                    while (flushing) {
+                        wait(intervalMillis);
+                        flush();
+                    }
+                } catch (InterruptedException e) {
+                    // Closed
+                } catch (IOException e) {
+                    System.err.println("History flush failed: " + e.getMessage());
+                }
+            }
+        }, "history-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Write entries added since the last flush in one batch. Stops at the first entry
+     * still being published so it goes out next time; entries overwritten before they
+     * could be written are counted in getDropped()
+     */
+    public synchronized void flush() throws IOException {
+        if (flushFile == null) {
+            return;
+        }
+        long end = next.get();
+        StringBuilder batch = new StringBuilder();
+        while (flushed < end) {
+            Entry entry = slots.getAcquire((int) (flushed & mask));
+            if (entry == null || entry.sequence < flushed) {
+                break;
+            }
+            if (entry.sequence > flushed) {
+                dropped++;
+            } else {
+                batch.append(entry.line).append('\n');
+            }
+            flushed++;
+        }
+        if (batch.length() == 0) {
+            return;
+        }
+        // Opened per batch so a trim by another shell's load() can't strand us on the old file
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        Path file = flushFile;
+        withLock(file, () -> append(file, bytes));
+    }
+
+    private static void append(Path file, ByteBuffer bytes) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Run action holding an exclusive lock on file's sibling .lock file
+     */
+    private static void withLock(Path file, FileAction action) throws IOException {
+        try (FileChannel lock = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Closing the channel releases the lock
+            lock.lock();
+            action.run();
+        }
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Stop the flusher after writing what is left
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = flusher;
+            flusher = null;
+            flushing = false;
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            flushFile = null;
+        }
+    }
+}
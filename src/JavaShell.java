@@ -1,14 +1,15 @@
 import org.jline.reader.*;
+import org.jline.reader.impl.LineReaderImpl;
 import org.jline.reader.impl.completer.StringsCompleter;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Main shell class with JLine 3 integration
@@ -16,27 +17,47 @@ import java.util.List;
 public class JavaShell {
     private Terminal terminal;
     private LineReader reader;
-    private CommandExecutor executor;
     private CommandHistory history;
-    private Path currentDirectory;
-    private List<String> commandHistory;
+    private ShellSession session;
+    private PromptEngine prompt;
 
     public JavaShell() throws IOException {
         this.terminal = TerminalBuilder.builder()
                 .system(true)
                 .build();
         
-        this.executor = new CommandExecutor();
         this.history = new CommandHistory();
-        this.commandHistory = new ArrayList<>();
-        this.currentDirectory = Paths.get(System.getProperty("user.dir"));
+        this.session = new ShellSession(new CommandExecutor(), Paths.get(System.getProperty("user.dir")), terminal);
         
         // Setup line reader with history and completion
         this.reader = LineReaderBuilder.builder()
                 .terminal(terminal)
                 .history(history.getHistory())
-                .completer(new StringsCompleter("cd", "pwd", "echo", "exit", "ls", "cat", "help", "history"))
+                .completer(new StringsCompleter("cd", "pwd", "echo", "exit", "ls", "cat", "help", "history", "limit", "pipestats", "export", "set",
+                        "pushd", "popd", "dirs", "z", "j", "trace"))
                 .build();
+        
+        this.prompt = new PromptEngine(this::redrawPrompt);
+        
+        // History comes from and is appended to ~/.javashell_history (or -Djavashell.history.file)
+        Path historyFile = Paths.get(System.getProperty("javashell.history.file",
+                Paths.get(System.getProperty("user.home"), ".javashell_history").toString()));
+        try {
+            session.getHistory().load(historyFile);
+            session.getHistory().startFlusher(historyFile, 1000);
+        } catch (IOException e) {
+            terminal.writer().println("Warning: history will not be saved: " + e.getMessage());
+        }
+        // Earlier sessions are reachable with the arrow keys too
+        for (HistoryRing.Entry entry : session.getHistory()) {
+            reader.getHistory().add(entry.getLine());
+        }
+        
+        // -Djavashell.record=FILE keeps a replayable log of this session for LoadTest
+        String recording = System.getProperty("javashell.record");
+        if (recording != null) {
+            session.setRecorder(new SessionRecorder(Paths.get(recording)));
+        }
     }
 
     public void run() {
@@ -45,18 +66,15 @@ public class JavaShell {
         while (true) {
             try {
                 // Read command line with prompt
-                String prompt = currentDirectory.toString() + "> ";
-                String line = reader.readLine(prompt);
+                String line = reader.readLine(prompt.render(session.getCurrentDirectory(),
+                        session.getExecutor().getLastStatus(), session.getLastDurationMillis()));
                 
                 if (line == null || line.trim().isEmpty()) {
                     continue;
                 }
                 
-                // Add to command history
-                commandHistory.add(line);
-                
                 // Execute command
-                if (!executeCommand(line)) {
+                if (!session.executeCommand(line)) {
                     break; // Exit if command returns false
                 }
                 
@@ -73,45 +91,50 @@ public class JavaShell {
         }
         
         try {
+            prompt.close();
+            session.getHistory().close();
             terminal.close();
         } catch (IOException e) {
             // Ignore
         }
     }
 
-    private boolean executeCommand(String line) {
-        try {
-            // Parse command
-            ParsedCommand parsed = CommandParser.parse(line);
-            
-            // Update current directory after cd command
-            if (parsed.getCommand().equals("cd")) {
-                String newDir = executor.executeBuiltIn(parsed, currentDirectory);
-                if (newDir != null) {
-                    currentDirectory = Paths.get(newDir).normalize();
-                }
-                return true;
-            }
-            
-            // Exit command
-            if (parsed.getCommand().equals("exit")) {
-                return false;
+    /**
+     * Swap in a prompt whose slow segments just finished, if input is still being read
+     */
+    private void redrawPrompt(String newPrompt) {
+        if (reader instanceof LineReaderImpl impl && impl.isReading()) {
+            try {
+                impl.setPrompt(newPrompt);
+                impl.callWidget(LineReader.REDRAW_LINE);
+                impl.callWidget(LineReader.REDISPLAY);
+            } catch (IllegalStateException e) {
+                // The line was accepted meanwhile; the next prompt will be current
             }
-            
-            // History command - handled separately
-            if (parsed.getCommand().equals("history")) {
-                printHistory();
-                return true;
+        }
+    }
+
+    /**
+     * Run a script file without a terminal, one logical command at a time.
+     * Commands inherit the shell's stdin and stdout unless redirected.
+     * Returns the exit status of the last command.
+     */
+    public static int runScript(Path script) throws IOException {
+        CommandExecutor executor = new CommandExecutor();
+        PrintWriter out = new PrintWriter(System.out);
+        ShellSession session = new ShellSession(executor, Paths.get(System.getProperty("user.dir")), out);
+        session.setRecordHistory(false);
+        
+        int prefetch = Integer.getInteger("javashell.script.prefetch", 0);
+        try (ScriptReader commands = new ScriptReader(script, prefetch)) {
+            while (commands.hasNext()) {
+                if (!session.executeCommand(commands.next())) {
+                    break;
+                }
             }
-            
-            // Execute command
-            executor.execute(parsed, currentDirectory, terminal);
-            return true;
-            
-        } catch (Exception e) {
-            terminal.writer().println("Error executing command: " + e.getMessage());
-            return true;
         }
+        out.flush();
+        return executor.getLastStatus();
     }
 
     private void printWelcomeMessage() {
@@ -120,19 +143,36 @@ public class JavaShell {
         terminal.writer().println();
     }
 
-    private void printHistory() {
-        if (commandHistory.isEmpty()) {
-            terminal.writer().println("No commands in history.");
-        } else {
-            for (int i = 0; i < commandHistory.size(); i++) {
-                terminal.writer().println((i + 1) + "  " + commandHistory.get(i));
-            }
-        }
-        terminal.writer().flush();
+    private static void printUsage(PrintStream out) {
+        out.println("Usage: java -jar java-shell.jar [script]");
+        out.println("       java -jar java-shell.jar --server [--socket path]");
+        out.println("       java -jar java-shell.jar --attach [--socket path]");
     }
 
     public static void main(String[] args) {
         try {
+            // Daemon mode and its thin client share the same jar
+            if (args.length > 0 && args[0].equals("--server")) {
+                ShellServer.main(Arrays.copyOfRange(args, 1, args.length));
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--attach")) {
+                ShellClient.main(Arrays.copyOfRange(args, 1, args.length));
+                return;
+            }
+            if (args.length > 0 && (args[0].equals("--help") || args[0].equals("-h"))) {
+                printUsage(System.out);
+                return;
+            }
+            if (args.length > 0 && args[0].startsWith("-")) {
+                System.err.println("Unknown option: " + args[0]);
+                printUsage(System.err);
+                System.exit(2);
+            }
+            if (args.length > 0) {
+                System.exit(runScript(Paths.get(args[0])));
+            }
+            
             JavaShell shell = new JavaShell();
             shell.run();
         } catch (Exception e) {
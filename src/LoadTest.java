@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Replays recorded sessions (see SessionRecorder) through ShellSession and CommandExecutor
+ * without a terminal, to measure the engine under a reproducible load.
+ *
+ * Usage: java -cp target/classes LoadTest [--sessions N] [--speed 1|10|max] [--repeat K]
+ *                                         [--stubs DIR] recording.jsonl...
+ *
+ *   --sessions N   concurrent sessions, each replaying one recording (round robin)
+ *   --speed S      1 keeps the recorded pacing, 10 plays it ten times faster, max
+ *                  runs commands back to back
+ *   --repeat K     replay each recording K times per session
+ *   --stubs DIR    put a stub for every external command the recordings use into DIR
+ *                  and run with DIR first on PATH, so results don't depend on the tools
+ *                  installed; a stub prints its arguments and copies stdin to stdout
+ *
+ * Reports throughput, latency percentiles per command line and the allocation rate of
+ * the whole JVM during the run.
+ */
+public class LoadTest {
+    private static final String STUBS_ENV = "JAVASHELL_STUBS";
+
+    private static class Command {
+        final long offsetMillis;
+        final Path cwd;
+        final String line;
+
+        Command(long offsetMillis, Path cwd, String line) {
+            this.offsetMillis = offsetMillis;
+            this.cwd = cwd;
+            this.line = line;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 1;
+        double speed = 1;
+        int repeat = 1;
+        Path stubs = null;
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sessions" -> sessions = Integer.parseInt(args[++i]);
+                case "--speed" -> speed = args[++i].equals("max") ? 0 : Double.parseDouble(args[i]);
+                case "--repeat" -> repeat = Integer.parseInt(args[++i]);
+                case "--stubs" -> stubs = Paths.get(args[++i]).toAbsolutePath();
+                default -> files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: LoadTest [--sessions N] [--speed 1|10|max] [--repeat K] [--stubs DIR] "
+                    + "recording.jsonl...");
+            System.exit(2);
+        }
+
+        List<List<Command>> recordings = new ArrayList<>();
+        for (Path file : files) {
+            recordings.add(load(file));
+        }
+
+        // The JVM resolves commands with its own PATH, so stubs need a fresh JVM
+        if (stubs != null && !stubs.toString().equals(System.getenv(STUBS_ENV))) {
+            writeStubs(stubs, recordings);
+            System.exit(relaunch(stubs, args));
+        }
+
+        run(recordings, sessions, speed, repeat);
+    }
+
+    private static List<Command> load(Path file) throws IOException {
+        List<Command> commands = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            Map<?, ?> record = (Map<?, ?>) Json.parse(line);
+            Path cwd = Paths.get((String) record.get("cwd"));
+            commands.add(new Command(((Number) record.get("t")).longValue(),
+                    Files.isDirectory(cwd) ? cwd : Paths.get(System.getProperty("java.io.tmpdir")),
+                    (String) record.get("line")));
+        }
+        return commands;
+    }
+
+    private static void run(List<List<Command>> recordings, int sessions, double speed, int repeat)
+            throws InterruptedException {
+        long[][] latencies = new long[sessions][];
+        int[] counts = new int[sessions];
+        Thread[] threads = new Thread[sessions];
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threadBean.getTotalThreadAllocatedBytes();
+        long start = System.nanoTime();
+
+        for (int s = 0; s < sessions; s++) {
+            int session = s;
+            List<Command> recording = recordings.get(s % recordings.size());
+            latencies[s] = new long[recording.size() * repeat];
+            threads[s] = Thread.ofVirtual().name("loadtest-" + s).start(() ->
+                    counts[session] = replay(recording, speed, repeat, latencies[session]));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int position = 0;
+        for (int s = 0; s < sessions; s++) {
+            System.arraycopy(latencies[s], 0, all, position, counts[s]);
+            position += counts[s];
+        }
+        Arrays.sort(all);
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("sessions %d, speed %s, commands %d in %.2f s%n",
+                sessions, speed == 0 ? "max" : speed + "x", total, seconds);
+        System.out.printf("throughput %.1f commands/s%n", total / seconds);
+        if (total > 0) {
+            System.out.printf("latency    p50 %.2f ms  p90 %.2f ms  p99 %.2f ms  max %.2f ms%n",
+                    percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[total - 1] / 1e6);
+        }
+        System.out.printf("allocation %s total, %s/s, %s per command%n",
+                ResourceLimits.formatSize(allocated), ResourceLimits.formatSize((long) (allocated / seconds)),
+                ResourceLimits.formatSize(total > 0 ? allocated / total : 0));
+    }
+
+    /**
+     * Replay one recording in a fresh headless session; returns the number of commands run
+     */
+    private static int replay(List<Command> recording, double speed, int repeat, long[] latencies) {
+        if (recording.isEmpty()) {
+            return 0;
+        }
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        int count = 0;
+
+        for (int r = 0; r < repeat; r++) {
+            CommandExecutor executor = new CommandExecutor();
+            executor.setSessionStreams(OutputStream.nullOutputStream(), discard);
+            ShellSession session = new ShellSession(executor, recording.get(0).cwd,
+                    new PrintWriter(Writer.nullWriter()));
+            session.setRecordHistory(false);
+
+            long replayStart = System.nanoTime();
+            for (Command command : recording) {
+                if (command.line.trim().equals("exit")) {
+                    break;
+                }
+                if (speed > 0) {
+                    long due = replayStart + (long) (command.offsetMillis / speed * 1_000_000);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        } catch (InterruptedException e) {
+                            return count;
+                        }
+                    }
+                }
+                long commandStart = System.nanoTime();
+                boolean keepGoing = session.executeCommand(command.line);
+                latencies[count++] = System.nanoTime() - commandStart;
+                if (!keepGoing) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+
+    /**
+     * One stub script per external command name used in the recordings
+     */
+    private static void writeStubs(Path dir, List<List<Command>> recordings) throws IOException {
+        CommandExecutor builtIns = new CommandExecutor();
+        Set<String> names = new TreeSet<>();
+        for (List<Command> recording : recordings) {
+            for (Command command : recording) {
+                ParsedCommand parsed = CommandParser.parse(command.line);
+                List<ParsedCommand> stages = parsed.isPiped() ? parsed.getPipeline() : List.of(parsed);
+                for (ParsedCommand stage : stages) {
+                    String name = stage.getCommand();
+                    if (name != null && !name.contains("/") && !builtIns.isBuiltInCommand(name)
+                            && !StructuredPipeline.COMMANDS.contains(name)) {
+                        names.add(name);
+                    }
+                }
+            }
+        }
+
+        Files.createDirectories(dir);
+        for (String name : names) {
+            Path stub = dir.resolve(name);
+            Files.writeString(stub, "#!/bin/sh\nprintf '%s\\n' \"$*\"\nexec cat\n");
+            Files.setPosixFilePermissions(stub, PosixFilePermissions.fromString("rwxr-xr-x"));
+        }
+        System.out.println("Stubbed " + names.size() + " commands in " + dir + ": " + String.join(" ", names));
+    }
+
+    private static int relaunch(Path stubs, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadTest.class.getName());
+        command.addAll(Arrays.asList(args));
+
+        ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+        builder.environment().put("PATH", stubs + java.io.File.pathSeparator + System.getenv("PATH"));
+        builder.environment().put(STUBS_ENV, stubs.toString());
+        return builder.start().waitFor();
+    }
+}
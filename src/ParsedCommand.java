@@ -9,7 +9,9 @@ public class ParsedCommand {
     private List<String> args = new ArrayList<>();
     private RedirectionInfo redirection = new RedirectionInfo();
     private boolean piped = false;
+    private boolean structured = false;
     private List<ParsedCommand> pipeline = new ArrayList<>();
+    private ResourceLimits limits;
 
     public String getCommand() {
         return command;
@@ -43,6 +45,17 @@ public class ParsedCommand {
         this.piped = piped;
     }
 
+    /**
+     * True when the pipeline stages are joined with |> and pass records instead of bytes
+     */
+    public boolean isStructured() {
+        return structured;
+    }
+
+    public void setStructured(boolean structured) {
+        this.structured = structured;
+    }
+
     public List<ParsedCommand> getPipeline() {
         return pipeline;
     }
@@ -51,12 +64,24 @@ public class ParsedCommand {
         this.pipeline = pipeline != null ? pipeline : new ArrayList<>();
     }
 
+    /**
+     * Limits set by a "limit ... --" prefix, or null to use the session defaults
+     */
+    public ResourceLimits getLimits() {
+        return limits;
+    }
+
+    public void setLimits(ResourceLimits limits) {
+        this.limits = limits;
+    }
+
     @Override
     public String toString() {
         return "ParsedCommand{" +
                 "command='" + command + '\'' +
                 ", args=" + args +
                 ", piped=" + piped +
+                ", structured=" + structured +
                 ", pipeline=" + pipeline.size() +
                 '}';
     }
@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded connection between two pipeline stages.
+ *
+ * A reader thread fills pooled buffers from the upstream channel and queues them; a
+ * writer thread drains the queue into the downstream channel. The watermarks count the
+ * capacity of the queued buffers rather than their payload, since a queued buffer pins
+ * all of it: once queuedBytes reaches the high watermark the reader stalls until the
+ * writer brings it down to the low watermark, so a fast producer can never hold more
+ * than the high watermark plus one buffer ahead of a slow consumer. Small reads are
+ * appended to the last queued buffer while it has room, so a producer writing short
+ * lines doesn't stall with the queue full of nearly empty buffers.
+ */
+public class PipeStage {
+    private final String name;
+    private final ReadableByteChannel source;
+    private final WritableByteChannel sink;
+    private final BufferPool pool;
+    private final long highWatermark;
+    private final long lowWatermark;
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean sourceDone;
+    private boolean sinkClosed;
+
+    private long bytesIn;
+    private long bytesOut;
+    private long stalls;
+    private long stallNanos;
+    private long peakQueuedBytes;
+    private long startNanos;
+    private long endNanos;
+
+    private Thread reader;
+    private Thread writer;
+
+    public PipeStage(String name, ReadableByteChannel source, WritableByteChannel sink,
+                     BufferPool pool, long highWatermark, long lowWatermark) {
+        this.name = name;
+        this.source = source;
+        this.sink = sink;
+        this.pool = pool;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        reader = new Thread(this::readLoop, "pipe-read " + name);
+        writer = new Thread(this::writeLoop, "pipe-write " + name);
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    public void join() throws InterruptedException {
+        reader.join();
+        writer.join();
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = null;
+        try {
+            while (true) {
+                if (buffer == null) {
+                    buffer = pool.acquire();
+                } else {
+                    buffer.clear();
+                }
+                int read = source.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+
+                synchronized (this) {
+                    // The writer only touches buffers it has taken off the queue
+                    ByteBuffer tail = queue.peekLast();
+                    if (tail != null && tail.capacity() - tail.limit() >= read) {
+                        int end = tail.limit();
+                        tail.limit(end + read);
+                        tail.put(end, buffer, 0, read);
+                        bytesIn += read;
+                        continue;
+                    }
+
+                    if (queuedBytes >= highWatermark && !sinkClosed) {
+                        stalls++;
+                        long stallStart = System.nanoTime();
+                        while (queuedBytes > lowWatermark && !sinkClosed) {
+                            wait();
+                        }
+                        stallNanos += System.nanoTime() - stallStart;
+                    }
+                    if (sinkClosed) {
+                        break;
+                    }
+                    queue.add(buffer);
+                    queuedBytes += buffer.capacity();
+                    bytesIn += read;
+                    peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+                    buffer = null;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Upstream closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (buffer != null) {
+                pool.release(buffer);
+            }
+            closeQuietly(source);
+            synchronized (this) {
+                sourceDone = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        ShellEvents.Pump event = new ShellEvents.Pump();
+        event.begin();
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    while (queue.isEmpty() && !sourceDone) {
+                        wait();
+                    }
+                    if (queue.isEmpty()) {
+                        break;
+                    }
+                    buffer = queue.poll();
+                }
+
+                int length = buffer.remaining();
+                int capacity = buffer.capacity();
+                try {
+                    while (buffer.hasRemaining()) {
+                        sink.write(buffer);
+                    }
+                } finally {
+                    pool.release(buffer);
+                }
+
+                synchronized (this) {
+                    queuedBytes -= capacity;
+                    bytesOut += length;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            // Downstream exited; let the producer see a broken pipe
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(sink);
+            synchronized (this) {
+                sinkClosed = true;
+                while (!queue.isEmpty()) {
+                    pool.release(queue.poll());
+                }
+                queuedBytes = 0;
+                endNanos = System.nanoTime();
+                notifyAll();
+                if (event.shouldCommit()) {
+                    event.name = name;
+                    event.bytes = bytesOut;
+                    event.stalls = stalls;
+                    event.commit();
+                }
+            }
+            closeQuietly(source);
+        }
+    }
+
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * One-line summary of throughput and stall counters
+     */
+    public synchronized String stats() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        double seconds = Math.max(end - startNanos, 1) / 1e9;
+        return String.format("%-30s %10d bytes %9.1f MB/s %6d stalls %8.1f ms stalled  peak queued %s",
+                name, bytesOut, bytesOut / seconds / (1 << 20), stalls, stallNanos / 1e6,
+                ResourceLimits.formatSize(peakQueuedBytes));
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    public synchronized long getStalls() {
+        return stalls;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Enforces ResourceLimits on a running process and its descendants, and reports its
+ * wall time and peak memory.
+ *
+ * A shared scheduler samples wall time and resident memory. On a breach the process
+ * tree gets SIGTERM, then SIGKILL once the grace period has passed. When a cgroup v2
+ * with the memory controller has been delegated to the shell (see Cgroup) the process
+ * is also placed in its own leaf cgroup, with memory.max set if there is a memory limit,
+ * so the kernel enforces the limit and reports an exact peak and any OOM kill.
+ *
+ * finish() must be called once the process has exited or been given up on, also on
+ * error paths, so the poller stops and the leaf cgroup is removed.
+ */
+public class ProcessWatchdog {
+    private static final long POLL_MILLIS = 20;
+    private static final long KILL_GRACE_MILLIS = 2000;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "process-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Process process;
+    private final ResourceLimits limits;
+    private final long startNanos;
+    private final Cgroup cgroup;
+    private final ScheduledFuture<?> poller;
+
+    private volatile long peakRssBytes;
+    private volatile String breach;
+    private long terminatedAtNanos;
+    private List<ProcessHandle> terminatedTree;
+    private String report;
+
+    private ProcessWatchdog(Process process, ResourceLimits limits, long startNanos) {
+        this.process = process;
+        this.limits = new ResourceLimits(limits);
+        this.startNanos = startNanos;
+        this.cgroup = Cgroup.create(process.pid(), limits.getMemoryBytes());
+        sample();
+        this.poller = SCHEDULER.scheduleAtFixedRate(this::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start watching a freshly started process; startNanos (System.nanoTime) is when it
+     * was spawned, which wall time and the time limit count from
+     */
+    public static ProcessWatchdog watch(Process process, ResourceLimits limits, long startNanos) {
+        return new ProcessWatchdog(process, limits, startNanos);
+    }
+
+    /**
+     * Stop watching and describe the run; call after the process has exited.
+     * Later calls return the same report
+     */
+    public synchronized String finish(String commandName) {
+        if (report != null) {
+            return report;
+        }
+        poller.cancel(false);
+        if (breach != null) {
+            // Descendants that ignored SIGTERM do not outlive the command
+            terminatedTree.forEach(ProcessHandle::destroyForcibly);
+        }
+        if (cgroup != null) {
+            peakRssBytes = Math.max(peakRssBytes, cgroup.peakBytes());
+            if (breach == null && cgroup.oomKills() > 0) {
+                // The kernel got there first; the process just exits with 137
+                breach = limits.getMemoryBytes() > 0
+                        ? "memory limit " + ResourceLimits.formatSize(limits.getMemoryBytes())
+                        : "out of memory";
+            }
+            cgroup.close();
+        }
+
+        double wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        report = String.format("[limit] %s: wall %.3fs, peak rss %s",
+                commandName, wallSeconds, ResourceLimits.formatSize(peakRssBytes));
+        if (breach != null) {
+            report += " (killed: " + breach + ")";
+        }
+        return report;
+    }
+
+    private synchronized void poll() {
+        if (report != null || !process.isAlive()) {
+            return;
+        }
+        sample();
+
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+        if (breach == null) {
+            if (limits.getTimeoutMillis() > 0 && elapsedMillis > limits.getTimeoutMillis()) {
+                terminate("time limit " + limits.getTimeoutMillis() / 1000.0 + "s");
+            } else if (limits.getMemoryBytes() > 0 && peakRssBytes > limits.getMemoryBytes()) {
+                terminate("memory limit " + ResourceLimits.formatSize(limits.getMemoryBytes()));
+            }
+        } else if ((System.nanoTime() - terminatedAtNanos) / 1_000_000 > KILL_GRACE_MILLIS) {
+            terminatedTree.forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Send SIGTERM to the process and every descendant, remembering them for escalation
+     */
+    private void terminate(String reason) {
+        terminatedAtNanos = System.nanoTime();
+        terminatedTree = process.descendants().collect(Collectors.toList());
+        breach = reason;
+        terminatedTree.forEach(ProcessHandle::destroy);
+        process.destroy();
+    }
+
+    private void sample() {
+        long rss = cgroup != null ? cgroup.currentBytes() : treeRssBytes();
+        if (rss > peakRssBytes) {
+            peakRssBytes = rss;
+        }
+    }
+
+    private long treeRssBytes() {
+        long total = rssBytes(process.pid());
+        for (ProcessHandle child : process.descendants().collect(Collectors.toList())) {
+            total += rssBytes(child.pid());
+        }
+        return total;
+    }
+
+    /**
+     * Read VmRSS from /proc; returns 0 where procfs is unavailable
+     */
+    private static long rssBytes(long pid) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    String kb = line.substring(6).trim().split("\\s+")[0];
+                    return Long.parseLong(kb) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Process gone or no procfs
+        }
+        return 0;
+    }
+
+    /**
+     * Per-command cgroup v2 leaf.
+     *
+     * cgroup v2 only lets a cgroup that has no processes of its own enable controllers
+     * for its children, so on a normal systemd login the shell's cgroup can't be the
+     * parent. Commands go under -Djavashell.cgroup=DIR when given, which must already
+     * be delegated to the shell's user with memory in cgroup.subtree_control; otherwise
+     * under the shell's own cgroup only if that already delegates memory. The shell
+     * never reconfigures an existing cgroup, so without either memory is sampled from
+     * /proc.
+     */
+    private static class Cgroup {
+        private static final Path ROOT = Paths.get("/sys/fs/cgroup");
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static boolean resolved;
+        private static Path parent;
+
+        private final Path directory;
+
+        private Cgroup(Path directory) {
+            this.directory = directory;
+        }
+
+        static Cgroup create(long pid, long memoryBytes) {
+            Path parent = parent();
+            if (parent == null) {
+                return null;
+            }
+            try {
+                Path directory = parent.resolve("javashell-" + ProcessHandle.current().pid() + "-" + COUNTER.incrementAndGet());
+                Files.createDirectory(directory);
+                Cgroup cgroup = new Cgroup(directory);
+                try {
+                    if (memoryBytes > 0) {
+                        Files.writeString(directory.resolve("memory.max"), Long.toString(memoryBytes));
+                    }
+                    Files.writeString(directory.resolve("cgroup.procs"), Long.toString(pid));
+                    return cgroup;
+                } catch (IOException e) {
+                    cgroup.close();
+                    throw e;
+                }
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Cgroup that command leaves are created in, worked out once; null if none
+         */
+        private static synchronized Path parent() {
+            if (!resolved) {
+                resolved = true;
+                try {
+                    parent = findParent();
+                } catch (IOException | RuntimeException e) {
+                    parent = null;
+                }
+            }
+            return parent;
+        }
+
+        private static Path findParent() throws IOException {
+            String configured = System.getProperty("javashell.cgroup");
+            if (configured != null) {
+                Path directory = Paths.get(configured);
+                return delegatesMemory(directory) ? directory : null;
+            }
+
+            Path own = ownCgroup();
+            if (own == null) {
+                return null;
+            }
+            // The root cgroup is exempt from the no-internal-processes rule
+            return delegatesMemory(own) ? own : null;
+        }
+
+        private static boolean delegatesMemory(Path directory) throws IOException {
+            Path control = directory.resolve("cgroup.subtree_control");
+            return Files.exists(control) && Files.readString(control).contains("memory");
+        }
+
+        private static Path ownCgroup() throws IOException {
+            if (!Files.exists(ROOT.resolve("cgroup.controllers"))) {
+                return null;
+            }
+            for (String line : Files.readAllLines(Paths.get("/proc/self/cgroup"))) {
+                if (line.startsWith("0::")) {
+                    return ROOT.resolve(line.substring(3).replaceFirst("^/", ""));
+                }
+            }
+            return null;
+        }
+
+        long currentBytes() {
+            return readLong("memory.current");
+        }
+
+        long peakBytes() {
+            return readLong("memory.peak");
+        }
+
+        /**
+         * Processes the kernel killed for going over memory.max
+         */
+        long oomKills() {
+            try {
+                for (String line : Files.readAllLines(directory.resolve("memory.events"))) {
+                    if (line.startsWith("oom_kill ")) {
+                        return Long.parseLong(line.substring("oom_kill ".length()).trim());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // No memory.events
+            }
+            return 0;
+        }
+
+        private long readLong(String file) {
+            try {
+                return Long.parseLong(Files.readString(directory.resolve(file)).trim());
+            } catch (IOException | RuntimeException e) {
+                return 0;
+            }
+        }
+
+        void close() {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                // Still populated by a lingering descendant; the kernel keeps it until then
+            }
+        }
+    }
+}
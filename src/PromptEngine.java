@@ -0,0 +1,318 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Builds the interactive prompt without blocking input.
+ *
+ * Cheap segments (directory, last exit status, duration) are computed inline. Slow
+ * ones (git branch, dirty state) run on virtual threads and are cached per working
+ * directory. render() uses whatever values are cached right now; when a segment for
+ * the current directory finishes with a new value the prompt is rebuilt and handed
+ * to the update callback, which redraws it. Cached values are recomputed once per
+ * prompt, since the last command may have changed the work tree, and while the
+ * prompt waits when a WatchService sees .git/HEAD or .git/index change. Bursts of
+ * git writes are debounced, and writes to other files never start git. The stale
+ * value stays on screen until the new one arrives.
+ */
+public class PromptEngine implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 200;
+    private static final long MAX_DEBOUNCE_MILLIS = 1000;
+
+    private final Consumer<String> onUpdate;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final Segment branch = new Segment(PromptEngine::gitBranch);
+    private final Segment dirty = new Segment(PromptEngine::gitDirty);
+
+    private final WatchService watcher;
+    private final Map<WatchKey, Set<Path>> watchedBy = new ConcurrentHashMap<>();
+
+    // Arguments of the last render, used to rebuild the prompt on updates
+    private volatile Path currentDirectory;
+    private volatile int lastStatus;
+    private volatile long lastDurationMillis;
+    private volatile String shownPrompt;
+
+    /**
+     * Cached values of one slow segment, keyed by working directory
+     */
+    private class Segment {
+        final Function<Path, String> compute;
+        final Map<Path, String> values = new ConcurrentHashMap<>();
+        final Set<Path> fresh = ConcurrentHashMap.newKeySet();
+        final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+        Segment(Function<Path, String> compute) {
+            this.compute = compute;
+        }
+
+        String get(Path cwd) {
+            if (!fresh.contains(cwd) && pending.add(cwd)) {
+                workers.execute(() -> refresh(cwd));
+            }
+            return values.getOrDefault(cwd, "");
+        }
+
+        void refresh(Path cwd) {
+            String value;
+            try {
+                value = compute.apply(cwd);
+            } finally {
+                pending.remove(cwd);
+            }
+            if (watchIfCurrent(cwd)) {
+                fresh.add(cwd);
+            }
+            String previous = values.put(cwd, value);
+            if (!Objects.equals(previous, value) && cwd.equals(currentDirectory)) {
+                String prompt = rebuild();
+                if (!prompt.equals(shownPrompt)) {
+                    shownPrompt = prompt;
+                    onUpdate.accept(prompt);
+                }
+            }
+        }
+
+        void invalidate(Path cwd) {
+            fresh.remove(cwd);
+        }
+    }
+
+    /**
+     * onUpdate receives a new prompt string, possibly from another thread
+     */
+    public PromptEngine(Consumer<String> onUpdate) throws IOException {
+        this.onUpdate = onUpdate;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        Thread.ofVirtual().name("prompt-watcher").start(this::watchLoop);
+    }
+
+    /**
+     * Prompt for the given state, using cached values for slow segments
+     */
+    public String render(Path cwd, int status, long durationMillis) {
+        moveTo(cwd);
+        // The command just run may have edited, staged or checked out files
+        branch.invalidate(cwd);
+        dirty.invalidate(cwd);
+        this.lastStatus = status;
+        this.lastDurationMillis = durationMillis;
+        shownPrompt = rebuild();
+        return shownPrompt;
+    }
+
+    private String rebuild() {
+        Path cwd = currentDirectory;
+        StringBuilder prompt = new StringBuilder(cwd.toString());
+
+        String branchName = branch.get(cwd);
+        if (!branchName.isEmpty()) {
+            prompt.append(" (").append(branchName).append(dirty.get(cwd)).append(')');
+        }
+        if (lastStatus != 0) {
+            prompt.append(" [").append(lastStatus).append(']');
+        }
+        if (lastDurationMillis >= 1000) {
+            prompt.append(String.format(" %.1fs", lastDurationMillis / 1000.0));
+        }
+        return prompt.append("> ").toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        workers.shutdownNow();
+        watcher.close();
+    }
+
+    /**
+     * Watch the git directory of cwd if the prompt is still showing it; a refresh
+     * that finishes after the shell moved on must not leave a registration behind
+     */
+    private synchronized boolean watchIfCurrent(Path cwd) {
+        if (!cwd.equals(currentDirectory)) {
+            return false;
+        }
+        Path gitDir = findGitDir(cwd);
+        if (gitDir != null) {
+            register(gitDir, cwd);
+        }
+        return true;
+    }
+
+    /**
+     * Switch the shown directory, dropping the watches of the previous one
+     */
+    private synchronized void moveTo(Path cwd) {
+        Path previous = currentDirectory;
+        if (previous != null && !previous.equals(cwd)) {
+            unwatch(previous);
+        }
+        currentDirectory = cwd;
+    }
+
+    /**
+     * Cancel the keys only cwd needed; its cached values are recomputed on return
+     */
+    private void unwatch(Path cwd) {
+        branch.invalidate(cwd);
+        dirty.invalidate(cwd);
+        watchedBy.entrySet().removeIf(entry -> {
+            Set<Path> dirs = entry.getValue();
+            dirs.remove(cwd);
+            if (dirs.isEmpty()) {
+                entry.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void register(Path dir, Path cwd) {
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedBy.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(cwd);
+        } catch (IOException | ClosedWatchServiceException e) {
+            // Not watchable; the cached value just stays until restart
+        }
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                Set<Path> branchStale = new HashSet<>();
+                Set<Path> dirtyStale = new HashSet<>();
+                collect(watcher.take(), branchStale, dirtyStale);
+                // Let a burst of git writes settle before running git again
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DEBOUNCE_MILLIS);
+                WatchKey key;
+                while (System.nanoTime() < deadline
+                        && (key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, branchStale, dirtyStale);
+                }
+
+                branchStale.forEach(branch::invalidate);
+                dirtyStale.forEach(dirty::invalidate);
+                // Refresh the prompt being shown so the redraw picks up the change
+                Path cwd = currentDirectory;
+                if (cwd != null && dirtyStale.contains(cwd)) {
+                    branch.get(cwd);
+                    dirty.get(cwd);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Engine closed
+        }
+    }
+
+    /**
+     * Note which directories a change to HEAD or index makes stale
+     */
+    private void collect(WatchKey key, Set<Path> branchStale, Set<Path> dirtyStale) {
+        Set<Path> affected = watchedBy.getOrDefault(key, Set.of());
+        for (WatchEvent<?> event : key.pollEvents()) {
+            String name = event.context() != null ? event.context().toString() : "";
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals("HEAD")) {
+                branchStale.addAll(affected);
+                dirtyStale.addAll(affected);
+            } else if (name.equals("index")) {
+                dirtyStale.addAll(affected);
+            }
+        }
+        if (!key.reset()) {
+            watchedBy.remove(key);
+        }
+    }
+
+    /**
+     * The .git directory of the repository containing cwd, or null
+     */
+    private static Path findGitDir(Path cwd) {
+        for (Path dir = cwd; dir != null; dir = dir.getParent()) {
+            Path git = dir.resolve(".git");
+            if (Files.isDirectory(git)) {
+                return git;
+            }
+            if (Files.isRegularFile(git)) {
+                // Worktrees and submodules point at their git directory
+                try {
+                    String link = Files.readString(git).trim();
+                    if (link.startsWith("gitdir:")) {
+                        return dir.resolve(link.substring("gitdir:".length()).trim()).normalize();
+                    }
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String gitBranch(Path cwd) {
+        Path gitDir = findGitDir(cwd);
+        if (gitDir == null) {
+            return "";
+        }
+        try {
+            String head = Files.readString(gitDir.resolve("HEAD")).trim();
+            if (head.startsWith("ref: refs/heads/")) {
+                return head.substring("ref: refs/heads/".length());
+            }
+            return head.length() > 7 ? head.substring(0, 7) : head;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * "*" when tracked files have changes; --no-optional-locks keeps git status from
+     * rewriting the index, which would wake the watcher again
+     */
+    private static String gitDirty(Path cwd) {
+        if (findGitDir(cwd) == null) {
+            return "";
+        }
+        try {
+            Process git = new ProcessBuilder("git", "--no-optional-locks", "status", "--porcelain",
+                    "--untracked-files=no")
+                    .directory(cwd.toFile())
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            git.getOutputStream().close();
+            boolean changed;
+            try (InputStream in = git.getInputStream()) {
+                changed = in.read() >= 0;
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            if (!git.waitFor(5, TimeUnit.SECONDS)) {
+                git.destroyForcibly();
+                return "";
+            }
+            return changed ? "*" : "";
+        } catch (IOException e) {
+            return "";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "";
+        }
+    }
+}
@@ -1,8 +1,13 @@
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Contains redirection information for stdin, stdout, and stderr
  */
 public class RedirectionInfo {
     private String stdinFile;
+    private final List<String> extraStdoutFiles = new ArrayList<>();
+    private final List<RedirectionMode> extraStdoutModes = new ArrayList<>();
     private String stdoutFile;
     private String stderrFile;
     private RedirectionMode stdoutMode = RedirectionMode.OVERWRITE;
@@ -24,6 +29,44 @@ public class RedirectionInfo {
         this.stdoutFile = stdoutFile;
     }
 
+    /**
+     * Add a stdout target; every target after the first receives a copy of the output
+     */
+    public void addStdoutFile(String file, RedirectionMode mode) {
+        if (!hasStdoutRedirection()) {
+            stdoutFile = file;
+            stdoutMode = mode;
+        } else {
+            extraStdoutFiles.add(file);
+            extraStdoutModes.add(mode);
+        }
+    }
+
+    /**
+     * All stdout targets, the primary one first
+     */
+    public List<String> getStdoutFiles() {
+        List<String> files = new ArrayList<>();
+        if (hasStdoutRedirection()) {
+            files.add(stdoutFile);
+            files.addAll(extraStdoutFiles);
+        }
+        return files;
+    }
+
+    public List<RedirectionMode> getStdoutModes() {
+        List<RedirectionMode> modes = new ArrayList<>();
+        if (hasStdoutRedirection()) {
+            modes.add(stdoutMode);
+            modes.addAll(extraStdoutModes);
+        }
+        return modes;
+    }
+
+    public boolean hasMultipleStdoutRedirections() {
+        return hasStdoutRedirection() && !extraStdoutFiles.isEmpty();
+    }
+
     public String getStderrFile() {
         return stderrFile;
     }
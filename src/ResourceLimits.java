@@ -0,0 +1,159 @@
+import java.util.List;
+
+/**
+ * Wall-clock and memory limits applied to external commands
+ * A value of zero means unlimited
+ */
+public class ResourceLimits {
+    private long timeoutMillis;
+    private long memoryBytes;
+    private boolean report;
+
+    public ResourceLimits() {
+    }
+
+    public ResourceLimits(ResourceLimits other) {
+        this.timeoutMillis = other.timeoutMillis;
+        this.memoryBytes = other.memoryBytes;
+        this.report = other.report;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public void setMemoryBytes(long memoryBytes) {
+        this.memoryBytes = memoryBytes;
+    }
+
+    /**
+     * Report wall time and peak memory even without limits
+     */
+    public boolean isReport() {
+        return report;
+    }
+
+    public void setReport(boolean report) {
+        this.report = report;
+    }
+
+    public boolean isUnlimited() {
+        return timeoutMillis == 0 && memoryBytes == 0;
+    }
+
+    /**
+     * Commands run under a ProcessWatchdog when limited or reported
+     */
+    public boolean isWatched() {
+        return !isUnlimited() || report;
+    }
+
+    /**
+     * Apply --time, --mem and --report options from args, starting at index start
+     * Returns the index of the first argument that is not an option (after a "--" if present)
+     */
+    public int parseOptions(List<String> args, int start) {
+        int i = start;
+        while (i < args.size()) {
+            String arg = args.get(i);
+            if (arg.equals("--")) {
+                return i + 1;
+            } else if (arg.equals("--time") && i + 1 < args.size()) {
+                timeoutMillis = parseDuration(args.get(i + 1));
+                i += 2;
+            } else if (arg.equals("--mem") && i + 1 < args.size()) {
+                memoryBytes = parseSize(args.get(i + 1));
+                i += 2;
+            } else if (arg.equals("--report") && i + 1 < args.size()) {
+                String value = args.get(i + 1);
+                if (!value.equals("on") && !value.equals("off")) {
+                    throw new IllegalArgumentException("--report takes on or off");
+                }
+                report = value.equals("on");
+                i += 2;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Parse durations like 500ms, 5s, 2m or 1h (seconds when no unit is given)
+     */
+    public static long parseDuration(String value) {
+        String number = value;
+        long scale = 1000;
+        if (value.endsWith("ms")) {
+            number = value.substring(0, value.length() - 2);
+            scale = 1;
+        } else if (value.endsWith("s")) {
+            number = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            number = value.substring(0, value.length() - 1);
+            scale = 60_000;
+        } else if (value.endsWith("h")) {
+            number = value.substring(0, value.length() - 1);
+            scale = 3_600_000;
+        }
+        try {
+            return Math.round(Double.parseDouble(number) * scale);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid duration: " + value);
+        }
+    }
+
+    /**
+     * Parse sizes like 4096, 100K, 512M or 2G
+     */
+    public static long parseSize(String value) {
+        String number = value.toUpperCase();
+        long scale = 1;
+        if (number.endsWith("B")) {
+            number = number.substring(0, number.length() - 1);
+        }
+        if (number.endsWith("K")) {
+            scale = 1L << 10;
+        } else if (number.endsWith("M")) {
+            scale = 1L << 20;
+        } else if (number.endsWith("G")) {
+            scale = 1L << 30;
+        }
+        if (scale != 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return Math.round(Double.parseDouble(number) * scale);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid size: " + value);
+        }
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes >= 1L << 30) {
+            return String.format("%.1fG", bytes / (double) (1L << 30));
+        } else if (bytes >= 1L << 20) {
+            return String.format("%.1fM", bytes / (double) (1L << 20));
+        } else if (bytes >= 1L << 10) {
+            return String.format("%.1fK", bytes / (double) (1L << 10));
+        }
+        return bytes + "B";
+    }
+
+    @Override
+    public String toString() {
+        return "time=" + (timeoutMillis == 0 ? "unlimited" : timeoutMillis / 1000.0 + "s") +
+                " mem=" + (memoryBytes == 0 ? "unlimited" : formatSize(memoryBytes)) +
+                " report=" + (report ? "on" : "off");
+    }
+}
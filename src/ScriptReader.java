@@ -0,0 +1,217 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the logical commands of a script file without loading it.
+ *
+ * The file is memory-mapped a window at a time and split on newlines that are not
+ * escaped with a backslash or inside quotes, so a command may span several lines.
+ * Lines may end in LF or CRLF.
+ * Blank lines and # comment lines are skipped. Commands come back as unparsed text;
+ * the session parses each one just before running it, so memory use depends on the
+ * longest command, not on the script size.
+ *
+ * With prefetch > 0 a background thread splits up to that many commands ahead of
+ * the one being executed.
+ */
+public class ScriptReader implements Iterator<String>, Closeable {
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final String END = new String("end of script");
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private byte[] command = new byte[256];
+    private int length;
+    // Byte read ahead to tell a CRLF continuation from an escaped CR
+    private int pending = -1;
+
+    private final BlockingQueue<Object> prefetched;
+    private final Thread prefetcher;
+    private Object next;
+
+    public ScriptReader(Path script, int prefetch) throws IOException {
+        this.channel = FileChannel.open(script, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowStart = 0;
+        this.window = map(0);
+
+        if (prefetch > 0) {
+            prefetched = new ArrayBlockingQueue<>(prefetch);
+            prefetcher = new Thread(this::prefetch, "script-prefetch");
+            prefetcher.setDaemon(true);
+            prefetcher.start();
+        } else {
+            prefetched = null;
+            prefetcher = null;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = take();
+        }
+        if (next instanceof IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return next != END;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = (String) next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (prefetcher != null) {
+            prefetcher.interrupt();
+        }
+        channel.close();
+    }
+
+    private Object take() {
+        if (prefetched == null) {
+            try {
+                String result = readCommand();
+                return result != null ? result : END;
+            } catch (IOException e) {
+                return e;
+            }
+        }
+        try {
+            return prefetched.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return END;
+        }
+    }
+
+    private void prefetch() {
+        try {
+            try {
+                String result;
+                while ((result = readCommand()) != null) {
+                    prefetched.put(result);
+                }
+                prefetched.put(END);
+            } catch (IOException e) {
+                prefetched.put(e);
+            }
+        } catch (InterruptedException e) {
+            // Reader closed
+        }
+    }
+
+    /**
+     * Split off the next logical command, or null at end of file
+     */
+    private String readCommand() throws IOException {
+        while (true) {
+            length = 0;
+            boolean inSingleQuotes = false;
+            boolean inDoubleQuotes = false;
+            int b = read();
+            while (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                b = read();
+            }
+            if (b < 0) {
+                return null;
+            }
+            if (b == '#') {
+                // Comment line, quotes in it mean nothing
+                while (b >= 0 && b != '\n') {
+                    b = read();
+                }
+                continue;
+            }
+
+            while (b >= 0) {
+                if (b == '\\' && !inSingleQuotes) {
+                    int escaped = read();
+                    if (escaped == '\r') {
+                        int lineFeed = read();
+                        if (lineFeed == '\n') {
+                            escaped = lineFeed;
+                        } else {
+                            pending = lineFeed;
+                        }
+                    }
+                    if (escaped == '\n') {
+                        // Line continuation
+                        b = read();
+                        continue;
+                    }
+                    append(b);
+                    if (escaped < 0) {
+                        break;
+                    }
+                    append(escaped);
+                } else if (b == '\'' && !inDoubleQuotes) {
+                    inSingleQuotes = !inSingleQuotes;
+                    append(b);
+                } else if (b == '"' && !inSingleQuotes) {
+                    inDoubleQuotes = !inDoubleQuotes;
+                    append(b);
+                } else if (b == '\n' && !inSingleQuotes && !inDoubleQuotes) {
+                    break;
+                } else if (b != '\r' || inSingleQuotes || inDoubleQuotes) {
+                    append(b);
+                }
+                b = read();
+            }
+
+            String text = new String(command, 0, length, StandardCharsets.UTF_8);
+            if (!text.isBlank()) {
+                return text;
+            }
+        }
+    }
+
+    private void append(int b) {
+        if (length == command.length) {
+            command = Arrays.copyOf(command, length * 2);
+        }
+        command[length++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        if (pending >= 0) {
+            int b = pending;
+            pending = -1;
+            return b;
+        }
+        if (!window.hasRemaining()) {
+            long nextStart = windowStart + window.capacity();
+            if (nextStart >= size) {
+                return -1;
+            }
+            windowStart = nextStart;
+            window = map(nextStart);
+        }
+        return window.get() & 0xff;
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Appends each command line of a session to a JSON Lines file for LoadTest to replay:
+ *
+ *   {"t":1520,"cwd":"/home/me/src","line":"grep -r TODO . | wc -l","ms":84,"status":0}
+ *
+ * t is milliseconds since the session started, ms how long the command took.
+ * Enable with -Djavashell.record=FILE.
+ */
+public class SessionRecorder implements Closeable {
+    private final Writer out;
+    private final long startNanos = System.nanoTime();
+
+    public SessionRecorder(Path file) throws IOException {
+        this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Record a command that started at commandStartNanos (System.nanoTime) in cwd
+     */
+    public synchronized void record(Path cwd, String line, long commandStartNanos, long durationMillis,
+                                    int status) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("t", (commandStartNanos - startNanos) / 1_000_000);
+        record.put("cwd", cwd.toString());
+        record.put("line", line);
+        record.put("ms", durationMillis);
+        record.put("status", status);
+        out.write(Json.write(record));
+        out.write('\n');
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
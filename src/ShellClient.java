@@ -0,0 +1,43 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Thin client for ShellServer: relays the local terminal to a server session.
+ * Starts in milliseconds since it loads no line editor and runs no commands itself.
+ *
+ * Usage: java -jar java-shell.jar --attach [--socket path]
+ */
+public class ShellClient {
+
+    public static void main(String[] args) throws IOException {
+        UnixDomainSocketAddress address = ShellServer.parseAddress(args);
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(address);
+
+            OutputStream toServer = Channels.newOutputStream(channel);
+            toServer.write((System.getProperty("user.dir") + "\n").getBytes(StandardCharsets.UTF_8));
+            toServer.flush();
+
+            // Keystrokes go up line by line as the local tty delivers them
+            Thread input = new Thread(() -> {
+                try {
+                    System.in.transferTo(toServer);
+                    channel.shutdownOutput();
+                } catch (IOException e) {
+                    // Server closed the session
+                }
+            });
+            input.setDaemon(true);
+            input.start();
+
+            // Unbuffered so prompts show up before a newline
+            OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+            Channels.newInputStream(channel).transferTo(stdout);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.List;
+
+/**
+ * Flight Recorder events for the phases of running a command line: parsing, starting
+ * processes, pumping bytes between them and waiting for them to exit.
+ *
+ * When no recording is running begin() and commit() return immediately and the JIT
+ * removes the unused event objects, so the instrumentation stays in production builds.
+ * Record them with the trace built-in, or with -XX:StartFlightRecording and a
+ * settings file that enables the "Java Shell" category.
+ */
+public class ShellEvents {
+    public static final List<Class<? extends Event>> ALL =
+            List.of(Parse.class, ParseStage.class, Spawn.class, Pump.class, Wait.class);
+
+    @Name("javashell.Parse")
+    @Label("Parse")
+    @Description("CommandParser.parse of one command line, including substitutions")
+    @Category("Java Shell")
+    @StackTrace(false)
+    public static class Parse extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        int argc;
+
+        @Label("Pipeline Stages")
+        int stages;
+
+        @Label("Line Length")
+        @Description("Characters in the parsed text")
+        long length;
+    }
+
+    @Name("javashell.ParseStage")
+    @Label("Parse Stage")
+    @Description("Parsing one stage of a pipeline; nested in the Parse event of its line")
+    @Category("Java Shell")
+    @StackTrace(false)
+    public static class ParseStage extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        int argc;
+
+        @Label("Stage Length")
+        @Description("Characters in the parsed text")
+        long length;
+    }
+
+    @Name("javashell.Spawn")
+    @Label("Spawn")
+    @Description("Starting an external process")
+    @Category("Java Shell")
+    @StackTrace(false)
+    public static class Spawn extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        int argc;
+    }
+
+    @Name("javashell.Pump")
+    @Label("Pump")
+    @Description("Copying a stream between processes, files and the terminal")
+    @Category("Java Shell")
+    @StackTrace(false)
+    public static class Pump extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Stalls")
+        long stalls;
+    }
+
+    @Name("javashell.Wait")
+    @Label("Wait")
+    @Description("Waiting for an external process to exit")
+    @Category("Java Shell")
+    @StackTrace(false)
+    public static class Wait extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Exit Status")
+        int exitStatus;
+    }
+}
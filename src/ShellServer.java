@@ -0,0 +1,124 @@
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+/**
+ * Daemon mode: one JVM serving many shell sessions over a Unix domain socket, so
+ * attached clients share its warmed-up code and caches. Anyone who can connect runs
+ * commands as the server's user, so the socket is readable and writable by its owner
+ * only and connections from any other user (checked with SO_PEERCRED) are dropped.
+ *
+ * Each connection gets its own ShellSession (working directory, environment, history)
+ * running on a virtual thread. The protocol is plain text: the client sends its working
+ * directory on the first line and command lines after that; the server answers with
+ * command output and a prompt after each command.
+ *
+ * Usage: java -jar java-shell.jar --server [--socket path]
+ */
+public class ShellServer {
+
+    public static void main(String[] args) throws IOException {
+        UnixDomainSocketAddress address = parseAddress(args);
+
+        try (ServerSocketChannel server = open(address)) {
+            try {
+                UserPrincipal owner = Files.getOwner(address.getPath());
+                System.err.println("Java Shell server listening on " + address);
+                while (true) {
+                    SocketChannel client = server.accept();
+                    Thread.ofVirtual().name("session").start(() -> serve(client, owner));
+                }
+            } finally {
+                Files.deleteIfExists(address.getPath());
+            }
+        }
+    }
+
+    /**
+     * Parse --socket path; defaults to a per-user socket in the temp directory
+     */
+    static UnixDomainSocketAddress parseAddress(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--socket")) {
+                return UnixDomainSocketAddress.of(args[i + 1]);
+            }
+        }
+        Path socket = Paths.get(System.getProperty("java.io.tmpdir"),
+                "javashell-" + System.getProperty("user.name") + ".sock");
+        return UnixDomainSocketAddress.of(socket);
+    }
+
+    private static ServerSocketChannel open(UnixDomainSocketAddress address) throws IOException {
+        Path path = address.getPath();
+        if (Files.exists(path)) {
+            // Only a socket file nobody listens on any more may be removed
+            try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                probe.connect(address);
+                throw new IOException("a server is already listening on " + path);
+            } catch (java.net.ConnectException e) {
+                Files.delete(path);
+            }
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(address);
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (IOException | UnsupportedOperationException e) {
+            server.close();
+            Files.deleteIfExists(path);
+            throw new IOException("cannot restrict access to " + path + ": " + e.getMessage(), e);
+        }
+        return server;
+    }
+
+    private static void serve(SocketChannel client, UserPrincipal owner) {
+        try (client) {
+            UnixDomainPrincipal peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            if (!peer.user().equals(owner)) {
+                System.err.println("Refused connection from " + peer.user().getName());
+                return;
+            }
+
+            OutputStream rawOut = Channels.newOutputStream(client);
+            PrintStream err = new PrintStream(rawOut, true, StandardCharsets.UTF_8);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+
+            Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+            String clientDirectory = in.readLine();
+            if (clientDirectory != null && Files.isDirectory(Paths.get(clientDirectory))) {
+                currentDirectory = Paths.get(clientDirectory);
+            }
+
+            CommandExecutor executor = new CommandExecutor();
+            executor.setSessionStreams(rawOut, err);
+            ShellSession session = new ShellSession(executor, currentDirectory, out);
+
+            out.print(session.getPrompt());
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty() && !session.executeCommand(line)) {
+                    break;
+                }
+                out.print(session.getPrompt());
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import org.jline.terminal.Terminal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+
+/**
+ * State of one interactive session: working directory, environment and history.
+ * Used by the JLine shell and by every client attached to a ShellServer.
+ */
+public class ShellSession {
+    private final CommandExecutor executor;
+    private final Terminal terminal;
+    private final PrintWriter out;
+    private final HistoryRing commandHistory = new HistoryRing(Integer.getInteger("javashell.history.size", 1000));
+    private Path currentDirectory;
+    private boolean recordHistory = true;
+    private long lastDurationMillis;
+    private SessionRecorder recorder;
+
+    /**
+     * Session bound to a JLine terminal
+     */
+    public ShellSession(CommandExecutor executor, Path currentDirectory, Terminal terminal) {
+        this(executor, currentDirectory, terminal, terminal.writer());
+    }
+
+    /**
+     * Headless session; the executor should have its session streams set
+     */
+    public ShellSession(CommandExecutor executor, Path currentDirectory, PrintWriter out) {
+        this(executor, currentDirectory, null, out);
+    }
+
+    private ShellSession(CommandExecutor executor, Path currentDirectory, Terminal terminal, PrintWriter out) {
+        this.executor = executor;
+        this.currentDirectory = currentDirectory;
+        this.terminal = terminal;
+        this.out = out;
+    }
+
+    public Path getCurrentDirectory() {
+        return currentDirectory;
+    }
+
+    public CommandExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Lines run in this session; safe to append to and read from any thread
+     */
+    public HistoryRing getHistory() {
+        return commandHistory;
+    }
+
+    /**
+     * Scripts turn history off so memory does not grow with their length
+     */
+    public void setRecordHistory(boolean recordHistory) {
+        this.recordHistory = recordHistory;
+    }
+
+    /**
+     * Wall time of the last command line
+     */
+    public long getLastDurationMillis() {
+        return lastDurationMillis;
+    }
+
+    /**
+     * Also append every command line with its timing to a recording for LoadTest
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public String getPrompt() {
+        return currentDirectory.toString() + "> ";
+    }
+
+    /**
+     * Record and execute one command line
+     * Returns false when the session should end
+     */
+    public boolean executeCommand(String line) {
+        // Add to command history
+        if (recordHistory) {
+            commandHistory.add(line);
+        }
+
+        long start = System.nanoTime();
+        Path startDirectory = currentDirectory;
+        try {
+            // Parse command
+            ParsedCommand parsed = CommandParser.parse(line, executor.substitution(currentDirectory));
+
+            // Update current directory after cd, pushd, popd and z
+            if (executor.changesDirectory(parsed.getCommand())) {
+                out.print(executor.executeBuiltIn(parsed, currentDirectory));
+                Path newDir = executor.takeDirectoryChange();
+                if (newDir != null) {
+                    currentDirectory = newDir;
+                    recordVisit(newDir);
+                }
+                executor.recordStatus(executor.getBuiltInStatus());
+                return continueAfterStatus();
+            }
+
+            // Exit command
+            if (parsed.getCommand().equals("exit")) {
+                return false;
+            }
+
+            // History command - handled separately
+            if (parsed.getCommand().equals("history")) {
+                printHistory();
+                executor.recordStatus(0);
+                return true;
+            }
+
+            // Execute command
+            executor.execute(parsed, currentDirectory, terminal);
+            return continueAfterStatus();
+
+        } catch (Exception e) {
+            out.println("Error executing command: " + e.getMessage());
+            executor.recordStatus(1);
+            return continueAfterStatus();
+        } finally {
+            lastDurationMillis = (System.nanoTime() - start) / 1_000_000;
+            out.flush();
+            if (recorder != null) {
+                try {
+                    recorder.record(startDirectory, line, start, lastDurationMillis, executor.getLastStatus());
+                } catch (IOException e) {
+                    executor.getErrorStream().println("Recording stopped: " + e.getMessage());
+                    recorder = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * With set -e a failing command ends the session
+     */
+    private boolean continueAfterStatus() {
+        return !(executor.isErrexit() && executor.getLastStatus() != 0);
+    }
+
+    /**
+     * Feed the z/j frecency index; scripts leave it alone like they leave history alone
+     */
+    private void recordVisit(Path dir) {
+        if (!recordHistory) {
+            return;
+        }
+        try {
+            FrecencyIndex.shared().recordVisit(dir);
+        } catch (IOException e) {
+            executor.getErrorStream().println("z: cannot update index: " + e.getMessage());
+        }
+    }
+
+    private void printHistory() {
+        if (commandHistory.isEmpty()) {
+            out.println("No commands in history.");
+        } else {
+            for (HistoryRing.Entry entry : commandHistory) {
+                out.println((entry.getSequence() + 1) + "  " + entry.getLine());
+            }
+        }
+        out.flush();
+    }
+}
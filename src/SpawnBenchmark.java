@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A/B benchmark of direct ProcessBuilder spawns against the spawn helper
+ *
+ * Usage: java -cp target/classes SpawnBenchmark [iterations] [command args...]
+ */
+public class SpawnBenchmark {
+    private static final int WARMUP = 50;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> command = args.length > 1
+                ? Arrays.asList(args).subList(1, args.length)
+                : List.of("true");
+        Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+
+        RedirectionInfo redir = new RedirectionInfo();
+        redir.setStdoutFile("/dev/null");
+
+        System.out.println("Command: " + String.join(" ", command) + ", iterations: " + iterations);
+
+        report("ProcessBuilder", run(iterations, () -> {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(currentDirectory.toFile());
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            builder.start().waitFor();
+        }));
+
+        try (SpawnHelper helper = SpawnHelper.start()) {
+            report("SpawnHelper", run(iterations, () -> helper.spawn(command, currentDirectory, Map.of(), redir)));
+        }
+    }
+
+    private interface Spawn {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static long[] run(int iterations, Spawn spawn) throws IOException, InterruptedException {
+        for (int i = 0; i < WARMUP; i++) {
+            spawn.run();
+        }
+
+        long[] nanos = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            spawn.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static void report(String name, long[] nanos) {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        System.out.printf("%-15s mean %8.1f us  p50 %8.1f us  p99 %8.1f us%n",
+                name,
+                total / (double) nanos.length / 1000.0,
+                nanos[nanos.length / 2] / 1000.0,
+                nanos[(int) (nanos.length * 0.99)] / 1000.0);
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Experimental prewarmed spawn server, kept only for SpawnBenchmark.
+ *
+ * A small-heap helper JVM inherits the caller's stdin, stdout and stderr and starts
+ * commands on request over a Unix domain socket; only argv, working directory,
+ * environment, redirection targets and the exit status cross the socket. The helper
+ * spawns with the same ProcessBuilder.start() as the shell, so the socket round trip
+ * makes it no faster, and the shell does not use it.
+ *
+ * Any failure on the socket, including an interrupt while waiting for a status,
+ * leaves the helper dead and kills the commands it started.
+ */
+public class SpawnHelper implements Closeable {
+    private static final long STARTUP_TIMEOUT_MS = 5000;
+
+    private final Process helper;
+    private final Path socketDirectory;
+    private final SocketChannel channel;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private volatile boolean dead;
+
+    /**
+     * The request never reached the helper, so the command can safely be spawned
+     * another way
+     */
+    public static class UnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnavailableException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private SpawnHelper(Process helper, Path socketDirectory, SocketChannel channel) {
+        this.helper = helper;
+        this.socketDirectory = socketDirectory;
+        this.channel = channel;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+    }
+
+    /**
+     * Launch the helper JVM and connect to it
+     */
+    public static SpawnHelper start() throws IOException {
+        Path socketDirectory = Files.createTempDirectory("javashell-spawn");
+        Path socketPath = socketDirectory.resolve("helper.sock");
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(
+                java, "-Xmx32m", "-XX:+UseSerialGC", "-XX:TieredStopAtLevel=1",
+                "-cp", System.getProperty("java.class.path"),
+                SpawnHelper.class.getName(), socketPath.toString());
+        builder.inheritIO();
+        Process helper = builder.start();
+
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (true) {
+            try {
+                SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+                try {
+                    channel.connect(UnixDomainSocketAddress.of(socketPath));
+                    return new SpawnHelper(helper, socketDirectory, channel);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            } catch (IOException e) {
+                if (!helper.isAlive() || System.currentTimeMillis() > deadline) {
+                    helper.destroyForcibly();
+                    throw new IOException("spawn helper did not start", e);
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    helper.destroyForcibly();
+                    throw new IOException("Interrupted while starting spawn helper", ie);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a command through the helper and wait for its exit status. environment is
+     * applied on top of the helper's own, which it inherited from the shell.
+     * Redirection targets must already be resolved against currentDirectory
+     */
+    public synchronized int spawn(List<String> commandAndArgs, Path currentDirectory, Map<String, String> environment,
+                                  RedirectionInfo redir) throws IOException {
+        if (!isAlive()) {
+            throw new UnavailableException("spawn helper is not running", null);
+        }
+        try {
+            send(commandAndArgs, currentDirectory, environment, redir);
+        } catch (IOException e) {
+            close();
+            throw new UnavailableException("spawn helper unavailable: " + e.getMessage(), e);
+        }
+
+        int status;
+        String failure = null;
+        try {
+            status = in.readInt();
+            if (status < 0) {
+                failure = in.readUTF();
+            }
+        } catch (EOFException e) {
+            close();
+            throw new IOException("spawn helper exited while running " + commandAndArgs.get(0), e);
+        } catch (ClosedByInterruptException e) {
+            // The reply can no longer be matched to a request
+            close();
+            throw new IOException("Process interrupted", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (failure != null) {
+            // The helper could not start the command but is still serving
+            throw new IOException(failure);
+        }
+        return status;
+    }
+
+    /**
+     * Whether the helper can take another command
+     */
+    public boolean isAlive() {
+        return !dead && helper.isAlive();
+    }
+
+    private void send(List<String> commandAndArgs, Path currentDirectory, Map<String, String> environment,
+                      RedirectionInfo redir) throws IOException {
+        out.writeUTF(currentDirectory.toAbsolutePath().toString());
+        out.writeInt(commandAndArgs.size());
+        for (String arg : commandAndArgs) {
+            out.writeUTF(arg);
+        }
+        out.writeInt(environment.size());
+        for (Map.Entry<String, String> variable : environment.entrySet()) {
+            out.writeUTF(variable.getKey());
+            out.writeUTF(variable.getValue());
+        }
+        writeTarget(redir.hasStdinRedirection() ? currentDirectory.resolve(redir.getStdinFile()) : null, false);
+        writeTarget(redir.hasStdoutRedirection() ? currentDirectory.resolve(redir.getStdoutFile()) : null,
+                redir.getStdoutMode() == RedirectionMode.APPEND);
+        writeTarget(redir.hasStderrRedirection() ? currentDirectory.resolve(redir.getStderrFile()) : null,
+                redir.getStderrMode() == RedirectionMode.APPEND);
+        out.flush();
+    }
+
+    private void writeTarget(Path file, boolean append) throws IOException {
+        out.writeUTF(file != null ? file.normalize().toString() : "");
+        out.writeBoolean(append);
+    }
+
+    @Override
+    public void close() {
+        dead = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        // Its children would otherwise outlive it where nothing can signal them
+        helper.descendants().forEach(ProcessHandle::destroyForcibly);
+        helper.destroy();
+        try {
+            Files.deleteIfExists(socketDirectory.resolve("helper.sock"));
+            Files.deleteIfExists(socketDirectory);
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Helper process entry point: serve spawn requests on the given socket path
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: SpawnHelper <socket-path>");
+            System.exit(2);
+        }
+
+        // Never outlive the shell that started us
+        ProcessHandle.current().parent().ifPresent(parent -> parent.onExit().thenRun(() -> System.exit(0)));
+
+        Path socketPath = Path.of(args[0]);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread handler = new Thread(() -> serve(client));
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    private static void serve(SocketChannel client) {
+        try (client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)))) {
+            while (true) {
+                String directory = in.readUTF();
+                int argc = in.readInt();
+                List<String> commandAndArgs = new ArrayList<>(argc);
+                for (int i = 0; i < argc; i++) {
+                    commandAndArgs.add(in.readUTF());
+                }
+
+                ProcessBuilder builder = new ProcessBuilder(commandAndArgs);
+                builder.directory(new File(directory));
+                int variables = in.readInt();
+                for (int i = 0; i < variables; i++) {
+                    builder.environment().put(in.readUTF(), in.readUTF());
+                }
+
+                String stdin = in.readUTF();
+                in.readBoolean();
+                builder.redirectInput(stdin.isEmpty()
+                        ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.from(new File(stdin)));
+                builder.redirectOutput(readTarget(in));
+                builder.redirectError(readTarget(in));
+
+                try {
+                    out.writeInt(builder.start().waitFor());
+                } catch (IOException e) {
+                    out.writeInt(-1);
+                    out.writeUTF(e.getMessage());
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // Shell disconnected
+        } catch (IOException | InterruptedException e) {
+            System.err.println("spawn helper: " + e.getMessage());
+        }
+    }
+
+    private static ProcessBuilder.Redirect readTarget(DataInputStream in) throws IOException {
+        String file = in.readUTF();
+        boolean append = in.readBoolean();
+        if (file.isEmpty()) {
+            return ProcessBuilder.Redirect.INHERIT;
+        }
+        return append ? ProcessBuilder.Redirect.appendTo(new File(file)) : ProcessBuilder.Redirect.to(new File(file));
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Structured pipelines joined with |>, passing records between in-process stages
+ * instead of bytes.
+ *
+ * Stages are lazy Stream operators over records (JSON objects as maps), so a file is
+ * parsed line by line as records are pulled through. With from-jsonl --unordered, or
+ * when a sort-by stage has to see every record anyway, parsing runs in parallel on the
+ * common fork-join pool, which takes lines from the reader in batches. Output keeps
+ * input order (or sort order) unless --unordered is given and nothing is sorted.
+ *
+ * Malformed lines are skipped; the first one is reported with its line number and the
+ * pipeline's status is 1.
+ *
+ *   from-jsonl [--unordered] file...   read JSON Lines ("-" for stdin, when the
+ *                                      session has one)
+ *   where FIELD [OP VALUE]             keep records matching; OP is ==, !=, =~,
+ *                                      lt, le, gt, ge (or quoted <, <=, >, >=)
+ *   select FIELD...                    keep only the named fields
+ *   sort-by FIELD [--desc]             sort records
+ *   to-jsonl                           write JSON Lines (implied at the end)
+ *
+ * Nested fields are addressed with dots, e.g. where http.status ge 500
+ */
+public class StructuredPipeline {
+    public static final Set<String> COMMANDS = Set.of("from-jsonl", "where", "select", "sort-by", "to-jsonl");
+
+    /**
+     * One input line and where it came from
+     */
+    private static final class Line {
+        final int source;
+        final String name;
+        final long number;
+        final String text;
+
+        Line(int source, String name, long number, String text) {
+            this.source = source;
+            this.name = name;
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Counts skipped lines and keeps the earliest one in input order, whichever
+     * worker thread finds it
+     */
+    private static final class Malformed {
+        private long count;
+        private Line first;
+        private String message;
+
+        synchronized void add(Line line, String error) {
+            count++;
+            if (first == null || line.source < first.source
+                    || (line.source == first.source && line.number < first.number)) {
+                first = line;
+                message = error;
+            }
+        }
+    }
+
+    /**
+     * Run the stages and write the resulting records to out as JSON Lines.
+     * in is what "-" reads, or null if the session has no input of its own.
+     * Returns the exit status; problems are reported on err
+     */
+    public static int execute(List<ParsedCommand> stages, Path currentDirectory, InputStream in, Writer out,
+                              PrintStream err) throws IOException {
+        if (stages.isEmpty() || !stages.get(0).getCommand().equals("from-jsonl")) {
+            throw new IllegalArgumentException("structured pipeline must start with from-jsonl");
+        }
+
+        boolean unordered = stages.get(0).getArgs().contains("--unordered");
+        boolean sorted = stages.stream().anyMatch(stage -> stage.getCommand().equals("sort-by"));
+        Malformed malformed = new Malformed();
+
+        try (Stream<Map<String, Object>> records = buildStream(stages, currentDirectory, in, unordered || sorted,
+                malformed)) {
+            Stream<String> lines = records.map(Json::write);
+            if (unordered && !sorted) {
+                lines.forEach(line -> writeLine(out, line));
+            } else {
+                lines.forEachOrdered(line -> writeLine(out, line));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+
+        if (malformed.first != null) {
+            err.println("from-jsonl: " + malformed.first.name + ":" + malformed.first.number + ": "
+                    + malformed.message + (malformed.count > 1 ? " (" + malformed.count + " lines skipped)" : ""));
+            return 1;
+        }
+        return 0;
+    }
+
+    private static Stream<Map<String, Object>> buildStream(List<ParsedCommand> stages, Path currentDirectory,
+                                                           InputStream in, boolean parallel, Malformed malformed)
+            throws IOException {
+        Stream<Map<String, Object>> records = null;
+
+        for (int i = 0; i < stages.size(); i++) {
+            ParsedCommand stage = stages.get(i);
+            List<String> args = stage.getArgs();
+            switch (stage.getCommand()) {
+                case "from-jsonl":
+                    if (i > 0) {
+                        throw new IllegalArgumentException("from-jsonl must be the first stage");
+                    }
+                    records = readJsonLines(args, currentDirectory, in, malformed);
+                    if (parallel) {
+                        records = records.parallel();
+                    }
+                    break;
+                case "where":
+                    records = records.filter(where(args));
+                    break;
+                case "select":
+                    records = records.map(record -> select(record, args));
+                    break;
+                case "sort-by":
+                    records = records.sorted(sortBy(args));
+                    break;
+                case "to-jsonl":
+                    if (i != stages.size() - 1) {
+                        throw new IllegalArgumentException("to-jsonl must be the last stage");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("not a structured command: " + stage.getCommand());
+            }
+        }
+        return records;
+    }
+
+    private static Stream<Map<String, Object>> readJsonLines(List<String> args, Path currentDirectory,
+                                                             InputStream in, Malformed malformed)
+            throws IOException {
+        if (in == null && args.contains("-")) {
+            // e.g. a daemon session, where System.in belongs to the server
+            throw new IllegalArgumentException("from-jsonl: this session has no stdin, give a file");
+        }
+        List<Stream<Line>> sources = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.equals("--unordered")) {
+                    continue;
+                } else if (arg.equals("-")) {
+                    BufferedReader stdin = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    sources.add(numberedLines(sources.size(), "-", stdin));
+                } else {
+                    BufferedReader reader = Files.newBufferedReader(currentDirectory.resolve(arg));
+                    sources.add(numberedLines(sources.size(), arg, reader).onClose(() -> {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                }
+            }
+        } catch (IOException e) {
+            sources.forEach(Stream::close);
+            throw e;
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("from-jsonl: no input files");
+        }
+
+        Stream<Line> lines = sources.get(0);
+        for (int i = 1; i < sources.size(); i++) {
+            lines = Stream.concat(lines, sources.get(i));
+        }
+        return lines.filter(line -> !line.text.isBlank())
+                .map(line -> toRecord(line, malformed))
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Lines of reader numbered from 1; the numbers are assigned as lines are read, so
+     * they stay right when parallel workers take them in batches
+     */
+    private static Stream<Line> numberedLines(int source, String name, BufferedReader reader) {
+        Iterator<Line> iterator = new Iterator<>() {
+            private long number;
+            private String pending;
+
+            @Override
+            public boolean hasNext() {
+                if (pending == null) {
+                    try {
+                        pending = reader.readLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return pending != null;
+            }
+
+            @Override
+            public Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String text = pending;
+                pending = null;
+                return new Line(source, name, ++number, text);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Parse one line, or note it as malformed and return null
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> toRecord(Line line, Malformed malformed) {
+        Object value;
+        try {
+            value = Json.parse(line.text);
+        } catch (IllegalArgumentException e) {
+            malformed.add(line, e.getMessage());
+            return null;
+        }
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("value", value);
+        return record;
+    }
+
+    /**
+     * Look up a possibly dotted field name
+     */
+    private static Object field(Map<String, Object> record, String name) {
+        Object value = record.get(name);
+        if (value != null || name.indexOf('.') < 0) {
+            return value;
+        }
+        Object current = record;
+        for (String part : name.split("\\.")) {
+            if (!(current instanceof Map<?, ?> map)) {
+                return null;
+            }
+            current = map.get(part);
+        }
+        return current;
+    }
+
+    private static Predicate<Map<String, Object>> where(List<String> args) {
+        if (args.size() == 1) {
+            String name = args.get(0);
+            return record -> {
+                Object value = field(record, name);
+                return value != null && !Boolean.FALSE.equals(value);
+            };
+        }
+        if (args.size() != 3) {
+            throw new IllegalArgumentException("usage: where FIELD [OP VALUE]");
+        }
+
+        String name = args.get(0);
+        String op = args.get(1);
+        String operand = args.get(2);
+
+        if (op.equals("=~")) {
+            Pattern pattern = Pattern.compile(operand);
+            return record -> {
+                Object value = field(record, name);
+                return value != null && pattern.matcher(value.toString()).find();
+            };
+        }
+
+        Comparable<?> expected = parseOperand(operand);
+        Predicate<Integer> test = switch (op) {
+            case "==", "eq" -> c -> c == 0;
+            case "!=", "ne" -> c -> c != 0;
+            case "<", "lt" -> c -> c < 0;
+            case "<=", "le" -> c -> c <= 0;
+            case ">", "gt" -> c -> c > 0;
+            case ">=", "ge" -> c -> c >= 0;
+            default -> throw new IllegalArgumentException("where: unknown operator " + op);
+        };
+        return record -> {
+            Object value = field(record, name);
+            if (value == null) {
+                return op.equals("!=") || op.equals("ne");
+            }
+            return test.test(compareValues(value, expected));
+        };
+    }
+
+    private static Comparable<?> parseOperand(String operand) {
+        try {
+            return Double.parseDouble(operand);
+        } catch (NumberFormatException e) {
+            return operand;
+        }
+    }
+
+    /**
+     * Numbers compare numerically, everything else by its string form
+     */
+    private static int compareValues(Object a, Object b) {
+        if (a instanceof Number x && b instanceof Number y) {
+            return Double.compare(x.doubleValue(), y.doubleValue());
+        }
+        if (b instanceof Number y && !(a instanceof Number)) {
+            try {
+                return Double.compare(Double.parseDouble(a.toString()), y.doubleValue());
+            } catch (NumberFormatException e) {
+                return a.toString().compareTo(y.toString());
+            }
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static Map<String, Object> select(Map<String, Object> record, List<String> fields) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String name : fields) {
+            result.put(name, field(record, name));
+        }
+        return result;
+    }
+
+    private static Comparator<Map<String, Object>> sortBy(List<String> args) {
+        if (args.isEmpty()) {
+            throw new IllegalArgumentException("usage: sort-by FIELD [--desc]");
+        }
+        String name = args.get(0);
+        Comparator<Object> values = Comparator.nullsLast(StructuredPipeline::compareValues);
+        Comparator<Map<String, Object>> comparator = Comparator.comparing(record -> field(record, name), values);
+        return args.contains("--desc") ? comparator.reversed() : comparator;
+    }
+
+    private static void writeLine(Writer out, String line) {
+        try {
+            synchronized (out) {
+                out.write(line);
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
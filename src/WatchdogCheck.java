@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Self-check of ProcessWatchdog's cgroup path: leaf creation, memory.max, peak and OOM
+ * reporting, and cleanup.
+ *
+ * Usage: java -cp target/classes WatchdogCheck [delegated-cgroup-dir]
+ *
+ * With a directory (a cgroup v2 delegated to this user with memory in
+ * cgroup.subtree_control, e.g. from systemd-run --user -p Delegate=yes) a memory hog is
+ * run under a 32M limit and must be reported as killed by the kernel, leaving no leaf
+ * behind. Without one, a scratch directory stands in for the cgroup: the check plays
+ * the kernel's part by filling in memory.peak and memory.events. Exits 1 on failure.
+ */
+public class WatchdogCheck {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        boolean real = args.length > 0;
+        Path parent = real ? Paths.get(args[0]) : Files.createTempDirectory("javashell-cgroup");
+        if (!real) {
+            Files.writeString(parent.resolve("cgroup.subtree_control"), "cpu memory pids\n");
+        }
+        // Read once, on the first watched command
+        System.setProperty("javashell.cgroup", parent.toString());
+
+        try {
+            if (real) {
+                checkKernelOomKill(parent);
+            } else {
+                checkLeafLifecycle(parent);
+            }
+        } finally {
+            if (!real) {
+                deleteTree(parent);
+            }
+        }
+
+        System.out.println(failures == 0 ? "OK" : failures + " check(s) failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void checkLeafLifecycle(Path parent) throws IOException, InterruptedException {
+        ResourceLimits limits = new ResourceLimits();
+        limits.setMemoryBytes(64L * 1024 * 1024);
+        Process process = new ProcessBuilder("sleep", "1").start();
+        ProcessWatchdog watchdog = ProcessWatchdog.watch(process, limits, System.nanoTime());
+
+        List<Path> leaves = leaves(parent);
+        check(leaves.size() == 1, "one leaf cgroup per command, got " + leaves);
+        if (leaves.size() != 1) {
+            process.destroyForcibly();
+            return;
+        }
+        Path leaf = leaves.get(0);
+        check(Files.readString(leaf.resolve("cgroup.procs")).equals(Long.toString(process.pid())),
+                "command moved into its leaf");
+        check(Files.readString(leaf.resolve("memory.max")).equals(Long.toString(64L * 1024 * 1024)),
+                "memory.max set from the limit");
+
+        Files.writeString(leaf.resolve("memory.peak"), Long.toString(3L * 1024 * 1024));
+        Files.writeString(leaf.resolve("memory.events"), "low 0\nhigh 0\nmax 4\noom 1\noom_kill 1\n");
+        process.waitFor();
+
+        String report = watchdog.finish("sleep");
+        System.out.println(report);
+        check(report.contains("peak rss " + ResourceLimits.formatSize(3L * 1024 * 1024)), "peak from memory.peak");
+        check(report.contains("(killed: memory limit " + ResourceLimits.formatSize(64L * 1024 * 1024) + ")"),
+                "oom_kill reported as a limit breach");
+        check(watchdog.finish("sleep").equals(report), "finish is idempotent");
+    }
+
+    private static void checkKernelOomKill(Path parent) throws IOException, InterruptedException {
+        ResourceLimits limits = new ResourceLimits();
+        limits.setMemoryBytes(32L * 1024 * 1024);
+        // tail buffers a line until its newline, which never comes
+        Process process = new ProcessBuilder("sh", "-c", "head -c 256M /dev/zero | tail -n 1 > /dev/null").start();
+        ProcessWatchdog watchdog = ProcessWatchdog.watch(process, limits, System.nanoTime());
+        check(leaves(parent).size() == 1, "leaf cgroup created");
+        int status = process.waitFor();
+
+        String report = watchdog.finish("tail");
+        System.out.println(report + ", exit " + status);
+        check(report.contains("(killed: memory limit"), "kernel OOM kill reported as a limit breach");
+        check(leaves(parent).isEmpty(), "leaf cgroup removed");
+    }
+
+    private static List<Path> leaves(Path parent) throws IOException {
+        try (Stream<Path> children = Files.list(parent)) {
+            return children.filter(child -> child.getFileName().toString().startsWith("javashell-"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            System.out.println("FAILED: " + what);
+            failures++;
+        }
+    }
+}